@@ -5,6 +5,7 @@ import org.slf4j.LoggerFactory;
 import org.telegram.telegrambots.client.okhttp.OkHttpTelegramClient;
 import org.telegram.telegrambots.longpolling.util.LongPollingSingleThreadUpdateConsumer;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.updates.SetWebhook;
 
 import org.telegram.telegrambots.meta.api.objects.Location;
 
@@ -12,136 +13,212 @@ import org.telegram.telegrambots.meta.api.objects.Update;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.*;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 import org.telegram.telegrambots.meta.generics.TelegramClient;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboardMarkup;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.KeyboardButton;
 
 public class Bot implements LongPollingSingleThreadUpdateConsumer {
 
     private final TelegramClient telegramClient;
+    private final OutboundDispatcher outbound;
+    private final UpstreamScheduler upstream;
+    private final MappedCacheStore store;
     private WeatherService weatherService;
     private Geolocator geolocator;
     private final Logger logger;
     private final String botOptions;
+    // a trailing "12h" or "3d" on /forecast
+    private static final Pattern FORECAST_SPAN = Pattern.compile("(?:^|\\s+)(\\d{1,3})\\s*([hHdD])$");
+    private static final int DEFAULT_FORECAST_DAYS = 3;
+    private static final int MAX_FORECAST_HOURS = 48;
+    private static final int MAX_FORECAST_DAYS = 9;
+    private static final int MAX_BATCH_PLACES = 8;
+    private final Duration replyDeadline;
 
-    public Bot(String botToken, String geolocatorToken) {
+    public Bot(String botToken, String geolocatorToken, Config config) {
         telegramClient = new OkHttpTelegramClient(botToken);
-        weatherService = new WeatherService();
-        geolocator = new Geolocator(geolocatorToken);
+        outbound = new OutboundDispatcher(telegramClient, config);
         logger = LoggerFactory.getLogger(Bot.class);
 
-        // Utility class
-        BotDatabase.initializeDatabase();
+        // Utility class, and the geolocator loads saved place names from it
+        BotDatabase.initializeDatabase(config);
+
+        // one http client shared by all the upstream apis, each kept to its own rate limit
+        upstream = new UpstreamScheduler(new UpstreamClient(config), config);
+        // forecasts and place names kept on disk, so a restart starts warm
+        store = openCacheStore(config);
+        weatherService = new WeatherService(upstream, config, store);
+        weatherService.startPrefetch(config);
+        geolocator = new Geolocator(geolocatorToken, upstream, config, store);
+
+        replyDeadline = Duration.ofSeconds(config.getInt("reply.deadlineSeconds", 10));
 
         botOptions = """
                My options are:
                /info,
-               /wx.""";
+               /wx [place; place; ...],
+               /forecast [place] [hours h|days d].""";
+    }
+
+    private MappedCacheStore openCacheStore(Config config) {
+        if (!config.getBoolean("cache.persistent", true)) {
+            return null;
+        }
+        String file = config.getString("cache.file", "weather-cache.bin");
+        try {
+            return MappedCacheStore.open(Path.of(file), config.getInt("cache.maxMegabytes", 64) << 20);
+        } catch (IOException | RuntimeException e) {
+            logger.error("Could not open cache file {}, caching in memory only: {}", file, e.getMessage());
+            return null;
+        }
     }
 
     @Override
     public void consume(Update update) {
         if (update.hasMessage()) {
-            long chatId = update.getMessage().getChat().getId();
-            long messageId = update.getMessage().getMessageId();
-
-            // save all the above into a db table
-            BotDatabase.saveUser(chatId, update.getMessage().getChatId(),
-                    update.getMessage().getChat().getUserName(),update.getMessage().getChat().getFirstName(),
-                    update.getMessage().getChat().getLastName(), update.getMessage().getFrom().getLanguageCode(),
-                    update.getMessage().getChat().getType());
-
-            logger.info("Is Weather requested? {}", BotDatabase.isWxRequested(chatId));
-            logger.info("Is Info requested? {}", BotDatabase.isInfoRequested(chatId));
-
-            // if there's a location...
-            if (update.getMessage().hasLocation() && BotDatabase.isWxRequested(chatId)) {
-                Location location = update.getMessage().getLocation();
-                String placeName = geolocator.findName(location.getLatitude(), location.getLongitude());
-                logger.info("place name = {}", placeName);
-                BotDatabase.saveUserLocation(chatId, location.getLatitude(),
-                        location.getLongitude(), placeName);
-                sendWeatherMsg(chatId);
+            // everything about the chat is read once here, and what changes is written back together at the end
+            ChatContext chat = BotDatabase.loadChatContext(update.getMessage().getChat().getId());
+            try {
+                consume(update, chat);
+            } finally {
+                BotDatabase.saveChatContext(chat);
             }
+        }
+    }
+
+    private void consume(Update update, ChatContext chat) {
+        long chatId = chat.chatId();
+        long messageId = update.getMessage().getMessageId();
 
-            // if there's text...
-            if (update.getMessage().hasText()) {
-                String receivedMsg = update.getMessage().getText();
-                BotDatabase.saveUserMessage(messageId, chatId, receivedMsg);
+        // save all the above into a db table
+        chat.saveUser(chatId,
+                update.getMessage().getChat().getUserName(),update.getMessage().getChat().getFirstName(),
+                update.getMessage().getChat().getLastName(), update.getMessage().getFrom().getLanguageCode(),
+                update.getMessage().getChat().getType());
 
-                logger.info("Received: {} from {}", receivedMsg, chatId);
+        logger.info("Is Weather requested? {}", chat.isWxRequested());
+        logger.info("Is Info requested? {}", chat.isInfoRequested());
 
-                if (BotDatabase.isChatActive(chatId)) {
+        // if there's a location...
+        if (update.getMessage().hasLocation() && chat.isWxRequested()) {
+            Location location = update.getMessage().getLocation();
+            CompletableFuture<String> placeName = geolocator.findNameAsync(location.getLatitude(),
+                    location.getLongitude());
+            sendWeatherMsg(chat, location.getLatitude(), location.getLongitude(), placeName);
+            // if the name didn't come in time it is looked up again next time
+            logger.info("place name = {}", nameNow(placeName));
+            chat.saveLocation(location.getLatitude(), location.getLongitude(), nameNow(placeName));
+        }
+
+        // if there's text...
+        if (update.getMessage().hasText()) {
+            String receivedMsg = update.getMessage().getText();
+            chat.logMessage(messageId, receivedMsg);
+
+            logger.info("Received: {} from {}", receivedMsg, chatId);
 
-                    if (receivedMsg.startsWith("/wx")) {
-                        BotDatabase.saveWxRequest(chatId, true);
+            if (chat.isActive()) {
 
-                        if (receivedMsg.equals("/wx")) {
-                            // message is just /wx, so ask for their location
-                            logger.info("/wx called.");
-                            if (BotDatabase.getUserLocation(chatId) == null) {
-                                sendLocationRequest(chatId);
+                if (receivedMsg.startsWith("/wx")) {
+                    chat.requestWx(true);
+
+                    if (receivedMsg.equals("/wx")) {
+                        // message is just /wx, so ask for their location
+                        logger.info("/wx called.");
+                        if (chat.place() == null) {
+                            sendLocationRequest(chatId);
+                        } else {
+                            sendWeatherMsg(chat);
+                        }
+                    } else if (receivedMsg.startsWith("/wx ")) {
+                        // message is /wx followed by a string
+                        // so assume this string is a place name and have a crack...
+                        String place = receivedMsg.substring(4).trim();
+                        logger.info("/wx called with place: {}", place);
+                        if (place.contains(";")) {
+                            // several places, e.g. /wx Oslo; Bergen; Tromsø
+                            sendBatchWeatherMsg(chat, place);
+                        } else {
+                            // use geolocator here to get location (lat, long) of place
+                            GeocodingBackend.Place found = geolocator.findPlace(place);
+                            if (found == null) {
+                                sendMsg(chatId, "The requested location does not exist in my records.");
                             } else {
-                                sendWeatherMsg(chatId);
-                            }
-                        } else if (receivedMsg.startsWith("/wx ")) {
-                            // message is /wx followed by a string
-                            // so assume this string is a place name and have a crack...
-                            String place = receivedMsg.substring(4).trim();
-                            logger.info("/wx called with place: {}", place);
-                            try {
-                                // use geolocator here to get location (lat, long) of place
-                                Location location = geolocator.findPlace(place);
-                                logger.info(location.toString());
+                                logger.info("found {}", found);
                                 // then pass to weather
-                                sendWeatherMsg(chatId, location);
-                            } catch (NullPointerException npe) {
-                                // our findPlace function returned a null location
-                                sendMsg(chatId, "The requested location does not exist in my records.");
+                                sendWeatherMsg(chat, found);
                             }
                         }
-                    } else {
-                        String msg;
+                    }
+                } else if (receivedMsg.equals("/forecast") || receivedMsg.startsWith("/forecast ")) {
+                    logger.info("/forecast called.");
+                    sendForecastMsg(chat, receivedMsg.substring("/forecast".length()).trim());
+                } else {
+                    String msg;
 
-                        switch (receivedMsg.toLowerCase()) {
-                            case "/info" -> {
+                    switch (receivedMsg.toLowerCase()) {
+                        case "/info" -> {
 
-                                logger.info("/info called.");
-                                BotDatabase.saveInfoRequest(chatId, true);
-                                msg = BotDatabase.getUserInfo(chatId);
-                            }
-                            case "/clear" -> {
-                                BotDatabase.deleteUserData(chatId);
-                                msg = "Deleted chat status & location for user.";
-                            }
-                            case "y", "yes", "/y", "/yes" -> {
-                                if (BotDatabase.isInfoRequested(chatId)) {
-                                    StringBuilder sb = new StringBuilder();
-                                    sb.append("Total messages sent by").append(" ")
-                                            .append(BotDatabase.getUserName(chatId)).append(": ")
-                                            .append(BotDatabase.getTotalMessages(chatId)).append("\n");
-
-                                   // msg += BotDatabase.convoDuration(chatId);
-                                    msg = sb.toString();
-                                    // what else...
-
-                                } else {
-                                    //back to default
-                                   msg = botOptions;
+                            logger.info("/info called.");
+                            chat.requestInfo(true);
+                            // written now, so the info shows this message's user details
+                            BotDatabase.saveChatContext(chat);
+                            msg = BotDatabase.getUserInfo(chatId);
+                        }
+                        case "/clear" -> {
+                            chat.clear();
+                            msg = "Deleted chat status & location for user.";
+                        }
+                        case "y", "yes", "/y", "/yes" -> {
+                            if (chat.isInfoRequested()) {
+                                // written now, so the stats count this message too
+                                BotDatabase.saveChatContext(chat);
+                                // kept up to date as messages come in, so this is one row whatever the history
+                                BotDatabase.ChatStats stats = BotDatabase.getChatStats(chatId);
+                                StringBuilder sb = new StringBuilder();
+                                sb.append("Total messages sent by").append(" ")
+                                        .append(chat.userName()).append(": ")
+                                        .append(stats != null ? stats.messageCount() : 0).append("\n");
+                                if (stats != null) {
+                                    sb.append("Chatting for: ")
+                                            .append(BotDatabase.formatDuration(stats.firstContact(), stats.lastContact()))
+                                            .append("\n");
+                                    sb.append("Weather requests: ").append(stats.weatherRequests()).append("\n");
+                                    if (!stats.topPlaces().isEmpty()) {
+                                        sb.append("Most asked about: ")
+                                                .append(String.join(", ", stats.topPlaces())).append("\n");
+                                    }
                                 }
+                                msg = sb.toString();
+
+                            } else {
+                                //back to default
+                               msg = botOptions;
                             }
-                            default -> {
-                                msg = botOptions;
-                            }
                         }
-                        sendMsg(chatId, msg);
+                        default -> {
+                            msg = botOptions;
+                        }
                     }
-                } else {
-                    logger.info("new chat");
-                    BotDatabase.saveChatStatus(chatId, false, false);
-                    sendMsg(chatId, "Hello, " + BotDatabase.getUserName(chatId) + ".\n" + botOptions);
+                    sendMsg(chatId, msg);
                 }
+            } else {
+                logger.info("new chat");
+                chat.start();
+                sendMsg(chatId, "Hello, " + chat.userName() + ".\n" + botOptions);
             }
         }
     }
@@ -150,35 +227,178 @@ public class Bot implements LongPollingSingleThreadUpdateConsumer {
 
         // String answer_text = msg + " \uD83E\uDD2E";
 
-        SendMessage sentMsg = SendMessage // Create a message object
-                .builder()
-                .chatId(chatId)
-                .text(msg)
-                .build();
+        // queued, and sent without holding up this update
+        outbound.send(chatId, msg);
+    }
+
+    private void sendWeatherMsg(ChatContext chat) {
+        BotDatabase.SavedPlace place = chat.place();
+        sendWeatherMsg(chat, place.latitude(), place.longitude(), nameOf(place));
+    }
+
+    // method overloading
+    private void sendWeatherMsg(ChatContext chat, GeocodingBackend.Place place) {
+        sendWeatherMsg(chat, place.latitude(), place.longitude(), nameOf(place));
+    }
+
+    private void sendWeatherMsg(ChatContext chat, double latitude, double longitude, CompletableFuture<String> name) {
+        // the weather and the place name are fetched side by side, and whatever has come by the deadline is sent
+        CompletableFuture<String> weather = weatherService.getWeatherAsync(latitude, longitude);
+        awaitReply(weather, name);
+        chat.recordWeatherRequest(latitude, longitude, nameNow(name));
+        String wxMsg = header("Weather", name, latitude, longitude)
+                + weather.getNow("The weather service is slow to answer, please try again shortly.");
+        sendMsg(chat.chatId(), wxMsg);
+    }
+
+    private void sendBatchWeatherMsg(ChatContext chat, String list) {
+        long chatId = chat.chatId();
+        // each distinct place once, in the order given
+        Map<String, String> queries = new LinkedHashMap<>();
+        for (String place : list.split(";")) {
+            String trimmed = place.trim();
+            if (!trimmed.isEmpty()) {
+                queries.putIfAbsent(PlaceQueryCache.normalize(trimmed), trimmed);
+            }
+        }
+        if (queries.isEmpty()) {
+            // e.g. "/wx ;", which would otherwise be an empty message
+            sendMsg(chatId, "Name a place to look up, or several: /wx Oslo; Bergen");
+            return;
+        }
+        if (queries.size() > MAX_BATCH_PLACES) {
+            sendMsg(chatId, "That's a lot of places, I can look up " + MAX_BATCH_PLACES + " at a time.");
+            return;
+        }
+
+        // geocode them all at once, then fetch one forecast per grid cell as each place comes in
+        Map<GridCell, CompletableFuture<String>> forecasts = new ConcurrentHashMap<>();
+        List<CompletableFuture<GeocodingBackend.Place>> locations = new ArrayList<>();
+        List<CompletableFuture<String>> reports = new ArrayList<>();
+        for (String place : queries.values()) {
+            CompletableFuture<GeocodingBackend.Place> location = geolocator.findPlaceAsync(place);
+            locations.add(location);
+            reports.add(location.thenCompose(found -> found == null
+                    ? CompletableFuture.completedFuture(null)
+                    : forecasts.computeIfAbsent(WeatherService.cellOf(found.latitude(), found.longitude()),
+                            cell -> weatherService.getWeatherAsync(found.latitude(), found.longitude()))));
+        }
+        awaitReply(reports.toArray(new CompletableFuture<?>[0]));
+
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        for (String place : queries.values()) {
+            CompletableFuture<GeocodingBackend.Place> location = locations.get(i);
+            CompletableFuture<String> report = reports.get(i++);
+            if (!sb.isEmpty()) {
+                sb.append("\n\n");
+            }
+            if (!location.isDone()) {
+                sb.append("Couldn't look up ").append(place).append(" in time.");
+                continue;
+            }
+            GeocodingBackend.Place found = location.isCompletedExceptionally() ? null : location.join();
+            if (found == null) {
+                sb.append("Couldn't find ").append(place).append(".");
+                continue;
+            }
+            chat.recordWeatherRequest(found.latitude(), found.longitude(), place);
+            // the name they gave saves a reverse geocode per place
+            String weather = report.isDone() && !report.isCompletedExceptionally() ? report.join() : null;
+            sb.append(header("Weather", CompletableFuture.completedFuture(place), found.latitude(), found.longitude()))
+                    .append(weather != null ? weather : "The weather service is slow to answer, please try again shortly.");
+        }
+        sendMsg(chatId, sb.toString());
+    }
+
+    private CompletableFuture<String> nameOf(BotDatabase.SavedPlace place) {
+        // the name was looked up when the location was saved
+        return place.placeName() != null ? CompletableFuture.completedFuture(place.placeName())
+                : geolocator.findNameAsync(place.latitude(), place.longitude());
+    }
+
+    private CompletableFuture<String> nameOf(GeocodingBackend.Place place) {
+        // geocoding usually names the place already, which saves looking it up in reverse
+        return place.name() != null ? CompletableFuture.completedFuture(place.name())
+                : geolocator.findNameAsync(place.latitude(), place.longitude());
+    }
+
+    private void awaitReply(CompletableFuture<?>... lookups) {
+        // give up waiting at the deadline, and reply with whatever has come in
         try {
-            telegramClient.execute(sentMsg);
-            logger.info("Sent {} in chat {}", sentMsg, chatId);
-        } catch (TelegramApiException e) {
+            CompletableFuture.allOf(lookups).get(replyDeadline.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logger.warn("Lookups for a reply took longer than {}s, sending what there is.", replyDeadline.toSeconds());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // the lookups fall back on their own, so this shouldn't happen
             logger.error(e.getMessage(), e);
         }
     }
 
-    private void sendWeatherMsg(long chatId) {
-        Location location = BotDatabase.getUserLocation(chatId);
-        String name = geolocator.findName(location.getLatitude(), location.getLongitude());
-        String weatherInfo = weatherService.getWeather(location.getLatitude(), location.getLongitude());
-        String wxMsg = String.format("Weather in %s:\n(%.2f, %.2f)\n", name, location.getLatitude(), location.getLongitude()) +
-                weatherInfo;
-        sendMsg(chatId, wxMsg);
+    private static String header(String title, CompletableFuture<String> name, double latitude, double longitude) {
+        // coordinates alone if the name is slow, failed or doesn't exist
+        String placeName = nameNow(name);
+        if (placeName == null) {
+            return String.format("%s at (%.2f, %.2f):\n", title, latitude, longitude);
+        }
+        return String.format("%s in %s:\n(%.2f, %.2f)\n", title, placeName, latitude, longitude);
     }
 
-    // method overloading
-    private void sendWeatherMsg(long chatId, Location location) {
-        String weatherInfo = weatherService.getWeather(location.getLatitude(), location.getLongitude());
-        String name = geolocator.findName(location.getLatitude(), location.getLongitude());
-        String wxMsg = String.format("Weather in %s:\n(%.2f, %.2f)\n", name, location.getLatitude(), location.getLongitude()) +
-                weatherInfo;
-        sendMsg(chatId, wxMsg);
+    private static String nameNow(CompletableFuture<String> name) {
+        // null unless the name has come in
+        return name.isCompletedExceptionally() ? null : name.getNow(null);
+    }
+
+    private void sendForecastMsg(ChatContext chat, String args) {
+        long chatId = chat.chatId();
+        // split "/forecast Oslo 12h" into the place and how far ahead to look
+        int hours = 0;
+        int days = DEFAULT_FORECAST_DAYS;
+        Matcher span = FORECAST_SPAN.matcher(args);
+        if (span.find()) {
+            int amount = Integer.parseInt(span.group(1));
+            if (span.group(2).equalsIgnoreCase("h")) {
+                hours = Math.max(1, Math.min(amount, MAX_FORECAST_HOURS));
+            } else {
+                days = Math.max(1, Math.min(amount, MAX_FORECAST_DAYS));
+            }
+            args = args.substring(0, span.start()).trim();
+        }
+
+        double latitude;
+        double longitude;
+        CompletableFuture<String> name;
+        if (args.isEmpty()) {
+            BotDatabase.SavedPlace place = chat.place();
+            if (place == null) {
+                sendMsg(chatId, "Share your location with /wx first, or name a place: /forecast Oslo 3d");
+                return;
+            }
+            latitude = place.latitude();
+            longitude = place.longitude();
+            name = nameOf(place);
+        } else {
+            GeocodingBackend.Place found = geolocator.findPlace(args);
+            if (found == null) {
+                sendMsg(chatId, "The requested location does not exist in my records.");
+                return;
+            }
+            latitude = found.latitude();
+            longitude = found.longitude();
+            name = nameOf(found);
+        }
+
+        // both come from the one cached forecast for the place, looked up alongside the name
+        CompletableFuture<String> forecast = hours > 0
+                ? weatherService.getHourlyForecastAsync(latitude, longitude, hours)
+                : weatherService.getDailyForecastAsync(latitude, longitude, days);
+        awaitReply(forecast, name);
+        chat.recordWeatherRequest(latitude, longitude, nameNow(name));
+        String period = hours > 0 ? hours + " hours" : days + (days == 1 ? " day" : " days");
+        sendMsg(chatId, header("Forecast for the next " + period, name, latitude, longitude)
+                + forecast.getNow("The weather service is slow to answer, please try again shortly."));
     }
 
     private void sendLocationRequest(long chatId) {
@@ -198,10 +418,39 @@ public class Bot implements LongPollingSingleThreadUpdateConsumer {
                 .text("Please share your location to get the weather.")
                 .replyMarkup(keyboardMarkup)
                 .build();
+        outbound.send(chatId, message);
+    }
+
+    public void sendSlowDown(long chatId) {
+        // the chat has more updates waiting than the dispatcher keeps, so the latest ones weren't read
+        sendMsg(chatId, "You're sending messages faster than I can answer, so I missed some. "
+                + "Please wait for a reply before sending more.");
+    }
+
+    public void setWebhook(String url, String secret) {
+        // tell telegram where to push updates
+        SetWebhook webhook = SetWebhook.builder()
+                .url(url)
+                .secretToken(secret)
+                .build();
         try {
-            telegramClient.execute(message);
+            telegramClient.execute(webhook);
+            logger.info("Webhook set to {}", url);
         } catch (TelegramApiException e) {
             logger.error(e.getMessage(), e);
         }
     }
+
+    public void close() {
+        // prefetching stops first, then the upstream scheduler, so nothing new goes out and what's
+        // still queued fails straight away. the lookups finish with that, and then the cache file they
+        // write to is forced to disk. last go the replies already queued
+        weatherService.close();
+        upstream.close();
+        geolocator.close();
+        if (store != null) {
+            store.close();
+        }
+        outbound.close();
+    }
 }
\ No newline at end of file
@@ -4,13 +4,23 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
 
-import org.telegram.telegrambots.meta.api.objects.Location;
+import bot.weather.ChatSessionCache.ChatSession;
+import bot.weather.ConnectionPool.PooledConnection;
 
 public class BotDatabase {
 
     /* Utility class handles the interaction between each instance of the bot and the database. */
 
+    public record SavedPlace(double latitude, double longitude, String placeName) {}
+
+    public record CachedGeocode(String query, double latitude, double longitude, String placeName) {}
+
+    public record ChatStats(int messageCount, int weatherRequests, Timestamp firstContact, Timestamp lastContact,
+                            List<String> topPlaces) {}
+
     // the form for internal to the jar
     static String dbPath = "databases/botData.db"; // Relative path
     static String DB_URL = "jdbc:sqlite:%s".formatted(BotDatabase.class.getResourceAsStream(dbPath));
@@ -19,8 +29,30 @@ public class BotDatabase {
     // not sure what this if for again:
     // static String DB_URL = "jdbc:sqlite:" + new File(dbPath).getAbsolutePath();
     private static final Logger logger = LoggerFactory.getLogger(BotDatabase.class);
-
-    public static void initializeDatabase() {
+    // connections stay open for the life of the process, see close()
+    private static final int POOL_SIZE = 4;
+    private static ConnectionPool pool;
+    // chat_status is read several times per update, so keep it in memory
+    private static final int SESSION_CACHE_SIZE = 10_000;
+    private static final ChatSessionCache sessions = new ChatSessionCache(SESSION_CACHE_SIZE);
+    // users and user_messages are logged in batches off the consumer thread
+    private static final int WRITE_QUEUE_CAPACITY = 10_000;
+    private static final int WRITE_BATCH_SIZE = 200;
+    private static final long WRITE_MAX_DELAY_MS = 250;
+    private static WriteBehindQueue writeBehind;
+    // most recent locations kept in each chat's history, the current one included
+    static final int DEFAULT_LOCATION_HISTORY = 10;
+    private static int locationHistory = DEFAULT_LOCATION_HISTORY;
+    // geocoded places kept on disk, no more than the geocoder loads back, and for no longer than this
+    private static int geocodeCacheSize = 5000;
+    private static int geocodeTtlDays = 30;
+    private static final int TOP_PLACES = 3;
+
+    public static void initializeDatabase(Config config) {
+
+        locationHistory = Math.max(0, config.getInt("locations.historyDepth", DEFAULT_LOCATION_HISTORY));
+        geocodeCacheSize = Math.max(0, config.getInt("geocoder.queryCacheSize", geocodeCacheSize));
+        geocodeTtlDays = Math.max(1, config.getInt("geocoder.queryTtlDays", geocodeTtlDays));
 
         try {
             Class.forName("org.sqlite.JDBC");
@@ -28,110 +60,128 @@ public class BotDatabase {
             System.err.println("Failed to register JDBC driver: " + e.getMessage());
         }
 
-        try (Connection connection = DriverManager.getConnection(DB_URL)) {
-            if (connection != null) {
-                try (Statement statement = connection.createStatement()) {
-
-                    String createUsersTable = """
-                        CREATE TABLE IF NOT EXISTS users (
-                            user_id        INTEGER PRIMARY KEY,
-                            chat_id        DOUBLE NOT NULL UNIQUE,
-                            username       TEXT,
-                            first_name     TEXT,
-                            last_name      TEXT,
-                            language_code  TEXT,
-                            chat_type      TEXT,
-                            first_contact  DATETIME DEFAULT CURRENT_TIMESTAMP,
-                            last_contact   DATETIME DEFAULT CURRENT_TIMESTAMP
-                        );
-                    """;
-                    statement.execute(createUsersTable);
-
-                    String createMessagesTable = """
-                       CREATE TABLE IF NOT EXISTS user_messages (
-                                      message_id     INTEGER PRIMARY KEY,
-                                      chat_id        INTEGER NOT NULL,
-                                      user_message   TEXT,
-                                      received_at    DATETIME DEFAULT CURRENT_TIMESTAMP,
-                                      FOREIGN KEY (chat_id) REFERENCES users(chat_id)
-                       );
-                    """;
-                    statement.execute(createMessagesTable);
-
-                    String createChatStatusTable = """
-                        CREATE TABLE IF NOT EXISTS chat_status (
-                            chat_id LONG PRIMARY KEY,
-                            wx_requested BOOLEAN,
-                            info_requested BOOLEAN,
-                            update_time DATETIME DEFAULT CURRENT_TIMESTAMP,
-                            FOREIGN KEY (chat_id) REFERENCES users(chat_id)
-                        );
-                    """;
-                    statement.execute(createChatStatusTable);
-
-                    String createUserLocationsTable = """
-                        CREATE TABLE IF NOT EXISTS user_locations (
-                            location_id INTEGER PRIMARY KEY AUTOINCREMENT,
-                            chat_id LONG NOT NULL,
-                            latitude DOUBLE,
-                            longitude DOUBLE,
-                            place_name TEXT,
-                            save_time DATETIME DEFAULT CURRENT_TIMESTAMP,
-                            FOREIGN KEY (chat_id) REFERENCES users(chat_id)
-                        );
-                    """;
-                    statement.execute(createUserLocationsTable);
-                }
-            }
+        try {
+            pool = new ConnectionPool(DB_URL, POOL_SIZE);
+            writeBehind = new WriteBehindQueue(pool, WRITE_QUEUE_CAPACITY, WRITE_BATCH_SIZE, WRITE_MAX_DELAY_MS);
         } catch (SQLException e) {
             logger.error(e.getMessage(), e);
+            return;
         }
-    }
 
-    public static void saveChatStatus(long chatId, boolean wxRequested, boolean infoRequested) {
-        String sql = "REPLACE INTO chat_status(chat_id, wx_requested, info_requested) VALUES(?, ?, ?)";
-
-        try (Connection connection = DriverManager.getConnection(DB_URL);
-             PreparedStatement statement = connection.prepareStatement(sql)) {
-                statement.setLong(1, chatId);
-                statement.setBoolean(2, wxRequested);
-                statement.setBoolean(3, infoRequested);
-                statement.executeUpdate();
+        // creates the tables on a new database, and brings an older one up to date,
+        // then trims what has built up in the geocode cache under older limits
+        try (PooledConnection connection = connect()) {
+            SchemaMigrations.migrate(connection);
+            trimGeocodes(connection);
         } catch (SQLException e) {
             logger.error(e.getMessage(), e);
         }
     }
 
-    public static void saveWxRequest(long chatId, boolean wxRequested) {
-        String sql = "UPDATE chat_status SET wx_requested = ?, update_time = CURRENT_TIMESTAMP WHERE chat_id = ?";
+    private static PooledConnection connect() throws SQLException {
+        if (pool == null) {
+            throw new SQLException("Database has not been initialised.");
+        }
+        return pool.acquire();
+    }
 
-        logger.info(sql);
+    private static void enqueue(WriteBehindQueue.Write write) {
+        if (writeBehind == null) {
+            logger.error("Database has not been initialised.");
+            return;
+        }
+        writeBehind.submit(write);
+    }
 
-        try (Connection connection = DriverManager.getConnection(DB_URL);
-             PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.setBoolean(1, wxRequested);
-            statement.setLong(2, chatId);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            logger.error(e.getMessage(), e);
+    private static void flushWrites() {
+        // reads of the logged tables must see what is still queued
+        if (writeBehind != null) {
+            writeBehind.flush();
         }
     }
 
-    public static void saveInfoRequest(long chatId, boolean infoRequested) {
-        String sql = "UPDATE chat_status SET info_requested = ?, update_time = CURRENT_TIMESTAMP WHERE chat_id = ?";
+    public static void close() {
+        if (writeBehind != null) {
+            writeBehind.close();
+        }
+        if (pool != null) {
+            pool.close();
+            logger.info("Database connections closed.");
+        }
+    }
 
-        try (Connection connection = DriverManager.getConnection(DB_URL);
-             PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.setBoolean(1, infoRequested);
-            statement.setLong(2, chatId);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            logger.error(e.getMessage(), e);
+    public static ChatContext loadChatContext(long chatId) {
+        return new ChatContext(chatId, getChatSession(chatId));
+    }
+
+    public static void saveChatContext(ChatContext context) {
+        // the chat's own state is written straight away, in one transaction, and only then cached.
+        // the user and message logging is queued like the rest of the logging.
+        if (!context.hasChanges()) {
+            return;
         }
+        long chatId = context.chatId();
+        ChatContext.User user = context.user();
+        ChatContext.LoggedMessage message = context.message();
+        boolean cleared = context.cleared();
+        ChatSession session = context.session();
+        boolean statusChanged = context.statusChanged();
+        SavedPlace location = context.location();
+        List<ChatContext.WeatherRequest> weatherRequests = List.copyOf(context.weatherRequests());
+        context.changesSaved();
+
+        if (user != null) {
+            enqueue(connection -> writeUser(connection, user.userId(), chatId, user.username(), user.firstName(),
+                    user.lastName(), user.languageCode(), user.chatType()));
+        }
+        if (message != null) {
+            enqueue(connection -> writeMessage(connection, message.messageId(), chatId, message.text()));
+        }
+
+        if (cleared || statusChanged || location != null || !weatherRequests.isEmpty()) {
+            if (cleared) {
+                // messages still queued for the chat have to be in before they're deleted
+                flushWrites();
+            }
+            try (PooledConnection connection = connect()) {
+                connection.connection().setAutoCommit(false);
+                if (cleared) {
+                    deleteChat(connection, chatId);
+                }
+                if (statusChanged) {
+                    writeChatStatus(connection, chatId, session.wxRequested(), session.infoRequested());
+                }
+                if (location != null) {
+                    writeLocation(connection, chatId, location.latitude(), location.longitude(), location.placeName());
+                }
+                for (ChatContext.WeatherRequest request : weatherRequests) {
+                    writeWeatherRequest(connection, chatId, request.latitude(), request.longitude(), request.placeName());
+                }
+                connection.connection().commit();
+                connection.connection().setAutoCommit(true);
+            } catch (SQLException e) {
+                // rolled back as the connection goes back to the pool, so read the chat afresh next time
+                logger.error(e.getMessage(), e);
+                sessions.invalidate(chatId);
+                return;
+            }
+        }
+        sessions.put(chatId, session);
     }
 
-    public static void saveUser(long userId, long chatId, String username, String firstName, String lastName,
-                                String languageCode, String chatType) {
+    private static void writeChatStatus(PooledConnection connection, long chatId, boolean wxRequested,
+                                        boolean infoRequested) throws SQLException {
+        String sql = "REPLACE INTO chat_status(chat_id, wx_requested, info_requested) VALUES(?, ?, ?)";
+        PreparedStatement statement = connection.prepare(sql);
+        statement.setLong(1, chatId);
+        statement.setBoolean(2, wxRequested);
+        statement.setBoolean(3, infoRequested);
+        statement.executeUpdate();
+    }
+
+    private static void writeUser(PooledConnection connection, long userId, long chatId, String username,
+                                  String firstName, String lastName, String languageCode, String chatType)
+            throws SQLException {
         String sql = """
             INSERT OR REPLACE INTO users(user_id, chat_id, username, first_name, last_name, language_code, chat_type)
             VALUES(?, ?, ?, ?, ?, ?, ?)
@@ -144,188 +194,258 @@ public class BotDatabase {
                         chat_id = excluded.chat_id,
                         last_contact = CURRENT_TIMESTAMP
         """;
-        try (Connection connection = DriverManager.getConnection(DB_URL);
-             PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.setLong(1, userId);
-            statement.setLong(2, chatId);
-            statement.setString(3, username);
-            statement.setString(4, firstName);
-            statement.setString(5, lastName);
-            statement.setString(6, languageCode);
-            statement.setString(7, chatType);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            logger.error(e.getMessage(), e);
-        }
+        PreparedStatement statement = connection.prepare(sql);
+        statement.setLong(1, userId);
+        statement.setLong(2, chatId);
+        statement.setString(3, username);
+        statement.setString(4, firstName);
+        statement.setString(5, lastName);
+        statement.setString(6, languageCode);
+        statement.setString(7, chatType);
+        statement.executeUpdate();
     }
 
-    public static void saveUserMessage(long messageId, long chatId, String messageText) {
-        String sql = "INSERT INTO user_messages(message_id, chat_id, user_message) VALUES (?, ?, ?)";
-        try (Connection connection = DriverManager.getConnection(DB_URL);
-             PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.setLong(1, messageId);
-            statement.setLong(2, chatId);
-            statement.setString(3, messageText);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            logger.error(e.getMessage(), e);
+    private static void writeMessage(PooledConnection connection, long messageId, long chatId, String messageText)
+            throws SQLException {
+        // message ids are per chat, so only a redelivered update matches here, and it is logged and counted once
+        String sql = "INSERT OR IGNORE INTO user_messages(message_id, chat_id, user_message) VALUES (?, ?, ?)";
+        // counted in the same transaction as the message itself
+        String statsSql = """
+            INSERT INTO chat_stats(chat_id, message_count) VALUES(?, 1)
+            ON CONFLICT(chat_id) DO UPDATE SET
+                        message_count = message_count + 1,
+                        last_contact = CURRENT_TIMESTAMP
+        """;
+        PreparedStatement statement = connection.prepare(sql);
+        statement.setLong(1, messageId);
+        statement.setLong(2, chatId);
+        statement.setString(3, messageText);
+        if (statement.executeUpdate() == 0) {
+            return;
         }
-    }
 
-    public static void saveUserLocation(long chatId, double latitude, double longitude, String placeName) {
-        String sql = "INSERT INTO user_locations(chat_id, latitude, longitude, place_name) VALUES(?, ?, ?, ?)";
-        try (Connection connection = DriverManager.getConnection(DB_URL)) {
-            try (PreparedStatement statement = connection.prepareStatement(sql)) {
-                statement.setLong(1, chatId);
-                statement.setDouble(2, latitude);
-                statement.setDouble(3, longitude);
-                statement.setString(4, placeName);
-                statement.executeUpdate();
-            }
-        } catch (SQLException e) {
-            logger.error(e.getMessage(), e);
-        }
+        statement = connection.prepare(statsSql);
+        statement.setLong(1, chatId);
+        statement.executeUpdate();
     }
 
-    private static void deleteUserLocation(long chatId) {
-        String deleteFromUserLocationsSql = "DELETE FROM user_locations WHERE chat_id = ?";
-        try (Connection connection = DriverManager.getConnection(DB_URL)) {
-            try (PreparedStatement statement = connection.prepareStatement(deleteFromUserLocationsSql)) {
-                statement.setLong(1, chatId);
-                statement.executeUpdate();
-            }
-        } catch (SQLException e) {
-            logger.error(e.getMessage(),e);
-        }
+    private static void writeWeatherRequest(PooledConnection connection, long chatId, double latitude,
+                                            double longitude, String placeName) throws SQLException {
+        String statsSql = """
+            INSERT INTO chat_stats(chat_id, weather_requests) VALUES(?, 1)
+            ON CONFLICT(chat_id) DO UPDATE SET weather_requests = weather_requests + 1
+        """;
+        String placeSql = """
+            INSERT INTO chat_place_stats(chat_id, latitude_key, longitude_key, place_name, uses) VALUES(?, ?, ?, ?, 1)
+            ON CONFLICT(chat_id, latitude_key, longitude_key) DO UPDATE SET
+                        uses = uses + 1,
+                        place_name = coalesce(excluded.place_name, place_name)
+        """;
+        PreparedStatement statement = connection.prepare(statsSql);
+        statement.setLong(1, chatId);
+        statement.executeUpdate();
+
+        statement = connection.prepare(placeSql);
+        statement.setLong(1, chatId);
+        statement.setLong(2, Math.round(latitude * 100));
+        statement.setLong(3, Math.round(longitude * 100));
+        statement.setString(4, placeName);
+        statement.executeUpdate();
     }
 
-    private static void deleteUserStatus(long chatId) {
-        String deleteFromUserLocationsSql = "DELETE FROM chat_status WHERE chat_id = ?";
-        try (Connection connection = DriverManager.getConnection(DB_URL)) {
-            try (PreparedStatement statement = connection.prepareStatement(deleteFromUserLocationsSql)) {
-                statement.setLong(1, chatId);
-                statement.executeUpdate();
-            }
-        } catch (SQLException e) {
-            logger.error(e.getMessage(),e);
-        }
-    }
+    private static void writeLocation(PooledConnection connection, long chatId, double latitude, double longitude,
+                                      String placeName) throws SQLException {
+        // the current location is replaced in place, and the history trimmed to its depth.
+        // the caller holds a transaction, so the three go together
+        String currentSql = """
+            INSERT INTO user_current_location(chat_id, latitude, longitude, place_name) VALUES(?, ?, ?, ?)
+            ON CONFLICT(chat_id) DO UPDATE SET
+                        latitude = excluded.latitude,
+                        longitude = excluded.longitude,
+                        place_name = excluded.place_name,
+                        save_time = CURRENT_TIMESTAMP
+        """;
+        String historySql = "INSERT INTO user_locations(chat_id, latitude, longitude, place_name) VALUES(?, ?, ?, ?)";
+        String trimSql = """
+            DELETE FROM user_locations WHERE chat_id = ? AND location_id <= (
+                SELECT location_id FROM user_locations WHERE chat_id = ?
+                ORDER BY location_id DESC LIMIT 1 OFFSET ?)
+        """;
+        PreparedStatement statement = connection.prepare(currentSql);
+        statement.setLong(1, chatId);
+        statement.setDouble(2, latitude);
+        statement.setDouble(3, longitude);
+        statement.setString(4, placeName);
+        statement.executeUpdate();
+
+        if (locationHistory > 0) {
+            statement = connection.prepare(historySql);
+            statement.setLong(1, chatId);
+            statement.setDouble(2, latitude);
+            statement.setDouble(3, longitude);
+            statement.setString(4, placeName);
+            statement.executeUpdate();
 
-    private static void deleteUserMessages(long chatId) {
-        String deleteFromUserLocationsSql = "DELETE FROM user_messages WHERE chat_id = ?";
-        try (Connection connection = DriverManager.getConnection(DB_URL)) {
-            try (PreparedStatement statement = connection.prepareStatement(deleteFromUserLocationsSql)) {
-                statement.setLong(1, chatId);
-                statement.executeUpdate();
-            }
-        } catch (SQLException e) {
-            logger.error(e.getMessage(),e);
+            statement = connection.prepare(trimSql);
+            statement.setLong(1, chatId);
+            statement.setLong(2, chatId);
+            statement.setInt(3, locationHistory);
+            statement.executeUpdate();
         }
     }
 
-    public static void deleteUserData(long chatId) {
-        deleteUserLocation(chatId);
-        deleteUserStatus(chatId);
-        deleteUserMessages(chatId);
+    private static void deleteChat(PooledConnection connection, long chatId) throws SQLException {
+        // everything but the users row, which the next message writes again anyway
+        for (String table : List.of("user_locations", "user_current_location", "chat_status", "user_messages",
+                "chat_stats", "chat_place_stats")) {
+            PreparedStatement statement = connection.prepare("DELETE FROM " + table + " WHERE chat_id = ?");
+            statement.setLong(1, chatId);
+            statement.executeUpdate();
+        }
     }
 
-    public static boolean isChatActive(long chatId) {
-        String sql = "SELECT 1 FROM chat_status WHERE chat_id = ?";
-        try (Connection connection = DriverManager.getConnection(DB_URL)) {
-            try (PreparedStatement statement = connection.prepareStatement(sql)) {
-                statement.setLong(1, chatId);
-                ResultSet rs = statement.executeQuery();
-                return rs.next();
-            }
-        } catch (SQLException e) {
-            logger.error(e.getMessage(), e);
-            return false;
+    private static ChatSession getChatSession(long chatId) {
+        ChatSession session = sessions.get(chatId);
+        if (session != null) {
+            return session;
         }
-    }
 
-    public static boolean isWxRequested(long chatId) {
-        String sql = "SELECT wx_requested FROM chat_status WHERE chat_id = ?";
-        try (Connection connection = DriverManager.getConnection(DB_URL)) {
-            try (PreparedStatement statement = connection.prepareStatement(sql)) {
-                statement.setLong(1, chatId);
-                ResultSet rs = statement.executeQuery();
-                if (rs.next()) {
-                    return rs.getBoolean("wx_requested");
+        // one query for the lot, whichever of the rows exist
+        String sql = """
+            SELECT s.chat_id IS NOT NULL AS active, s.wx_requested, s.info_requested,
+                   l.latitude, l.longitude, l.place_name, u.chat_id IS NOT NULL AS known, u.first_name, u.last_name
+            FROM (SELECT ? AS chat_id) c
+            LEFT JOIN chat_status s ON s.chat_id = c.chat_id
+            LEFT JOIN user_current_location l ON l.chat_id = c.chat_id
+            LEFT JOIN users u ON u.chat_id = c.chat_id
+        """;
+        // whatever is still queued for the chat has to be in before it's read
+        flushWrites();
+        try (PooledConnection connection = connect()) {
+            PreparedStatement statement = connection.prepare(sql);
+            statement.setLong(1, chatId);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    return ChatSession.INACTIVE;
                 }
+                double latitude = rs.getDouble("latitude");
+                SavedPlace place = rs.wasNull() ? null
+                        : new SavedPlace(latitude, rs.getDouble("longitude"), rs.getString("place_name"));
+                String userName = rs.getBoolean("known")
+                        ? displayName(rs.getString("first_name"), rs.getString("last_name")) : null;
+                session = new ChatSession(rs.getBoolean("active"), rs.getBoolean("wx_requested"),
+                        rs.getBoolean("info_requested"), place, userName);
             }
         } catch (SQLException e) {
+            // not cached, so the next read tries the database again
             logger.error(e.getMessage(), e);
+            return ChatSession.INACTIVE;
         }
-        return false;
+        sessions.putIfAbsent(chatId, session);
+        return session;
     }
 
-    public static boolean isInfoRequested(long chatId) {
-        String sql = "SELECT info_requested FROM chat_status WHERE chat_id = ?";
-        try (Connection connection = DriverManager.getConnection(DB_URL)) {
-            try (PreparedStatement statement = connection.prepareStatement(sql)) {
-                statement.setLong(1, chatId);
-                ResultSet rs = statement.executeQuery();
-                if (rs.next()) {
-                    return rs.getBoolean("info_requested");
-                }
-            }
-        } catch (SQLException e) {
-            logger.error(e.getMessage(), e);
+    static String displayName(String firstName, String lastName) {
+        // first and last name, as the greeting has always put it
+        StringBuilder sb = new StringBuilder();
+        if (firstName != null || lastName != null) {
+            sb.append(firstName != null ? firstName : "")
+                    .append(lastName != null ? " " + lastName : "");
         }
-        return false;
+        return sb.toString();
     }
 
-    public static Location getUserLocation(long chatId) {
-        String sql = "SELECT latitude, longitude FROM user_locations WHERE chat_id = ?";
-        try (Connection connection = DriverManager.getConnection(DB_URL)) {
-            try (PreparedStatement statement = connection.prepareStatement(sql)) {
-                statement.setLong(1, chatId);
-                ResultSet rs = statement.executeQuery();
-                if (rs.next()) {
-                    double latitude = rs.getDouble("latitude");
-                    double longitude = rs.getDouble("longitude");
-                    return new Location(longitude, latitude);
+    public static List<SavedPlace> getSavedPlaces(int limit) {
+        // one place per 0.01 degree cell, as chat_place_stats counts them, so one chat asking about
+        // the same place again and again doesn't fill the limit. the current locations are read too,
+        // as the history is empty when locations.historyDepth is 0.
+        // within a cell a named place wins over the newest, and the newest cells come first,
+        // so the limit keeps the most recent. the name is null if none was found.
+        String sql = """
+            SELECT latitude, longitude, place_name
+            FROM (
+                SELECT latitude, longitude, place_name, save_time,
+                       ROW_NUMBER() OVER (
+                           PARTITION BY CAST(ROUND(latitude * 100) AS INTEGER), CAST(ROUND(longitude * 100) AS INTEGER)
+                           ORDER BY place_name IS NULL, save_time DESC) AS pick
+                FROM (
+                    SELECT latitude, longitude, place_name, save_time FROM user_current_location
+                    UNION ALL
+                    SELECT latitude, longitude, place_name, save_time FROM user_locations
+                    WHERE latitude IS NOT NULL AND longitude IS NOT NULL))
+            WHERE pick = 1
+            ORDER BY save_time DESC
+            LIMIT ?
+        """;
+        List<SavedPlace> places = new ArrayList<>();
+        try (PooledConnection connection = connect()) {
+            PreparedStatement statement = connection.prepare(sql);
+            statement.setInt(1, limit);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    places.add(new SavedPlace(rs.getDouble("latitude"), rs.getDouble("longitude"),
+                            rs.getString("place_name")));
                 }
             }
         } catch (SQLException e) {
             logger.error(e.getMessage(), e);
         }
-        return null;
+        return places;
     }
 
-    public static String getUserName(long chatId) {
-        String sql = "SELECT username, first_name, last_name " +
-                "FROM users WHERE chat_id = ?";
-        try (Connection connection = DriverManager.getConnection(DB_URL)) {
-            try (PreparedStatement statement = connection.prepareStatement(sql)) {
-                statement.setLong(1, chatId);
-                ResultSet rs = statement.executeQuery();
-                if (rs.next()) {
-                    StringBuilder sb = new StringBuilder();
-                    String firstName = rs.getString("first_name");
-                    String lastName = rs.getString("last_name");
+    public static void saveGeocode(String query, double latitude, double longitude, String placeName) {
+        String sql = "REPLACE INTO geocode_cache(query, latitude, longitude, place_name) VALUES(?, ?, ?, ?)";
+        enqueue(connection -> {
+            PreparedStatement statement = connection.prepare(sql);
+            statement.setString(1, query);
+            statement.setDouble(2, latitude);
+            statement.setDouble(3, longitude);
+            statement.setString(4, placeName);
+            statement.executeUpdate();
+            trimGeocodes(connection);
+        });
+    }
 
-                    if (firstName != null || lastName != null) {
-                        sb.append(firstName != null ? firstName : "")
-                                .append(lastName != null ? " " + lastName : "");
-                    }
+    private static void trimGeocodes(PooledConnection connection) throws SQLException {
+        // drops what has expired and the oldest beyond the size, going by the cached_at index
+        String sql = """
+            DELETE FROM geocode_cache WHERE cached_at < datetime('now', ?) OR cached_at <= (
+                SELECT cached_at FROM geocode_cache ORDER BY cached_at DESC LIMIT 1 OFFSET ?)
+        """;
+        PreparedStatement statement = connection.prepare(sql);
+        statement.setString(1, "-" + geocodeTtlDays + " days");
+        statement.setInt(2, geocodeCacheSize);
+        statement.executeUpdate();
+    }
 
-                    return sb.toString();
+    public static List<CachedGeocode> getGeocodes(int limit) {
+        String sql = "SELECT query, latitude, longitude, place_name FROM geocode_cache " +
+                "WHERE cached_at >= datetime('now', ?) ORDER BY cached_at DESC LIMIT ?";
+        List<CachedGeocode> geocodes = new ArrayList<>();
+        try (PooledConnection connection = connect()) {
+            PreparedStatement statement = connection.prepare(sql);
+            statement.setString(1, "-" + geocodeTtlDays + " days");
+            statement.setInt(2, limit);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    geocodes.add(new CachedGeocode(rs.getString("query"), rs.getDouble("latitude"),
+                            rs.getDouble("longitude"), rs.getString("place_name")));
                 }
             }
         } catch (SQLException e) {
             logger.error(e.getMessage(), e);
         }
-        return null;
+        return geocodes;
     }
 
     public static String getUserInfo(long chatId) {
+        flushWrites();
         String sql = "SELECT username, first_name, last_name, language_code, chat_type, first_contact " +
                 "FROM users WHERE chat_id = ?";
-        try (Connection connection = DriverManager.getConnection(DB_URL)) {
-            try (PreparedStatement statement = connection.prepareStatement(sql)) {
-                statement.setLong(1, chatId);
-                ResultSet rs = statement.executeQuery();
+        try (PooledConnection connection = connect()) {
+            PreparedStatement statement = connection.prepare(sql);
+            statement.setLong(1, chatId);
+            try (ResultSet rs = statement.executeQuery()) {
                 if (rs.next()) {
 
                     StringBuilder sb = new StringBuilder();
@@ -366,46 +486,54 @@ public class BotDatabase {
         return null;
     }
 
-    public static Integer getTotalMessages(long chatId) {
-        String sql = "SELECT COUNT(*) AS total_messages FROM user_messages WHERE chat_id = ?";
-        try (Connection connection = DriverManager.getConnection(DB_URL)) {
-            try (PreparedStatement statement = connection.prepareStatement(sql)) {
-                statement.setLong(1, chatId);
-                ResultSet rs = statement.executeQuery();
-                if (rs.next()) {
-                    return rs.getInt("total_messages");
+    public static ChatStats getChatStats(long chatId) {
+        flushWrites();
+        String sql = "SELECT message_count, weather_requests, first_contact, last_contact FROM chat_stats WHERE chat_id = ?";
+        String placesSql = "SELECT latitude_key, longitude_key, place_name FROM chat_place_stats " +
+                "WHERE chat_id = ? ORDER BY uses DESC LIMIT ?";
+        try (PooledConnection connection = connect()) {
+            PreparedStatement statement = connection.prepare(sql);
+            statement.setLong(1, chatId);
+            int messageCount;
+            int weatherRequests;
+            Timestamp firstContact;
+            Timestamp lastContact;
+            try (ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
                 }
+                messageCount = rs.getInt("message_count");
+                weatherRequests = rs.getInt("weather_requests");
+                firstContact = rs.getTimestamp("first_contact");
+                lastContact = rs.getTimestamp("last_contact");
             }
-        } catch (SQLException e) {
-            logger.error(e.getMessage(), e);
-        }
-        return null;
-    }
-
-    public static String convoDuration(long chatId) {
-        String sql = "SELECT first_contact, last_contact FROM users WHERE chat_id = ?";
-        try (Connection connection = DriverManager.getConnection(DB_URL)) {
-            try (PreparedStatement statement = connection.prepareStatement(sql)) {
-                statement.setLong(1, chatId);
-                ResultSet rs = statement.executeQuery();
-                if (rs.next()) {
-                    Timestamp firstContact = rs.getTimestamp("first_contact");
-                    Timestamp lastContact = rs.getTimestamp("last_contact");
-
-                    long durationMillis = lastContact.getTime() - firstContact.getTime();
-                    long seconds = durationMillis / 1000 % 60;
-                    long minutes = durationMillis / (1000 * 60) % 60;
-                    long hours = durationMillis / (1000 * 60 * 60) % 24;
-                    long days = durationMillis / (1000 * 60 * 60 * 24);
-
-                    return String.format("%d days, %02d:%02d:%02d", days, hours, minutes, seconds);
 
+            List<String> topPlaces = new ArrayList<>();
+            statement = connection.prepare(placesSql);
+            statement.setLong(1, chatId);
+            statement.setInt(2, TOP_PLACES);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    String placeName = rs.getString("place_name");
+                    topPlaces.add(placeName != null ? placeName : String.format("(%.2f, %.2f)",
+                            rs.getLong("latitude_key") / 100.0, rs.getLong("longitude_key") / 100.0));
                 }
             }
+            return new ChatStats(messageCount, weatherRequests, firstContact, lastContact, topPlaces);
         } catch (SQLException e) {
             logger.error(e.getMessage(), e);
         }
         return null;
     }
 
+    public static String formatDuration(Timestamp firstContact, Timestamp lastContact) {
+        long durationMillis = lastContact.getTime() - firstContact.getTime();
+        long seconds = durationMillis / 1000 % 60;
+        long minutes = durationMillis / (1000 * 60) % 60;
+        long hours = durationMillis / (1000 * 60 * 60) % 24;
+        long days = durationMillis / (1000 * 60 * 60 * 24);
+
+        return String.format("%d days, %02d:%02d:%02d", days, hours, minutes, seconds);
+    }
+
 }
@@ -0,0 +1,165 @@
+package bot.weather;
+
+import bot.weather.BotDatabase.SavedPlace;
+import bot.weather.ChatSessionCache.ChatSession;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ChatContext {
+
+    /*
+     What the handlers need to know about a chat for one update, read all at once at the start
+     (from the session cache, or else one joined query), see BotDatabase.loadChatContext().
+     Changes the handlers make are seen straight away by the getters here, and are
+     collected until BotDatabase.saveChatContext() writes the chat's state back in one transaction
+     and queues the user and message logging.
+     Only ever used by the thread handling the update.
+     */
+
+    record User(long userId, String username, String firstName, String lastName, String languageCode,
+                String chatType) {
+    }
+
+    record LoggedMessage(long messageId, String text) {
+    }
+
+    record WeatherRequest(double latitude, double longitude, String placeName) {
+    }
+
+    private final long chatId;
+    private ChatSession session;
+
+    // changes not yet written
+    private User user;
+    private LoggedMessage message;
+    private boolean statusChanged;
+    private SavedPlace location;
+    private final List<WeatherRequest> weatherRequests;
+    private boolean cleared;
+
+    ChatContext(long chatId, ChatSession session) {
+        this.chatId = chatId;
+        this.session = session;
+        this.weatherRequests = new ArrayList<>();
+    }
+
+    public long chatId() {
+        return chatId;
+    }
+
+    public boolean isActive() {
+        return session.active();
+    }
+
+    public boolean isWxRequested() {
+        return session.wxRequested();
+    }
+
+    public boolean isInfoRequested() {
+        return session.infoRequested();
+    }
+
+    // the saved location, null if there isn't one
+    public SavedPlace place() {
+        return session.place();
+    }
+
+    public String userName() {
+        return session.userName();
+    }
+
+    public void saveUser(long userId, String username, String firstName, String lastName,
+                         String languageCode, String chatType) {
+        user = new User(userId, username, firstName, lastName, languageCode, chatType);
+        session = session.withUserName(BotDatabase.displayName(firstName, lastName));
+    }
+
+    public void logMessage(long messageId, String text) {
+        message = new LoggedMessage(messageId, text);
+    }
+
+    public void start() {
+        // a new chat, with nothing asked for yet
+        session = session.withStatus(true, false, false);
+        statusChanged = true;
+    }
+
+    public void requestWx(boolean wxRequested) {
+        // like the UPDATE it replaces, nothing happens for a chat that hasn't started
+        if (session.active()) {
+            session = session.withWxRequested(wxRequested);
+            statusChanged = true;
+        }
+    }
+
+    public void requestInfo(boolean infoRequested) {
+        if (session.active()) {
+            session = session.withInfoRequested(infoRequested);
+            statusChanged = true;
+        }
+    }
+
+    public void saveLocation(double latitude, double longitude, String placeName) {
+        location = new SavedPlace(latitude, longitude, placeName);
+        session = session.withPlace(location);
+    }
+
+    public void recordWeatherRequest(double latitude, double longitude, String placeName) {
+        weatherRequests.add(new WeatherRequest(latitude, longitude, placeName));
+    }
+
+    public void clear() {
+        // everything but the user goes, including this update's message and any other changes
+        cleared = true;
+        message = null;
+        statusChanged = false;
+        location = null;
+        weatherRequests.clear();
+        session = session.withStatus(false, false, false).withPlace(null);
+    }
+
+    // read by BotDatabase when writing back
+
+    ChatSession session() {
+        return session;
+    }
+
+    User user() {
+        return user;
+    }
+
+    LoggedMessage message() {
+        return message;
+    }
+
+    boolean statusChanged() {
+        return statusChanged;
+    }
+
+    SavedPlace location() {
+        return location;
+    }
+
+    List<WeatherRequest> weatherRequests() {
+        return weatherRequests;
+    }
+
+    boolean cleared() {
+        return cleared;
+    }
+
+    boolean hasChanges() {
+        return user != null || message != null || statusChanged || location != null
+                || !weatherRequests.isEmpty() || cleared;
+    }
+
+    void changesSaved() {
+        // so saving again only writes what has changed since
+        user = null;
+        message = null;
+        statusChanged = false;
+        location = null;
+        weatherRequests.clear();
+        cleared = false;
+    }
+}
@@ -0,0 +1,147 @@
+package bot.weather;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.longpolling.interfaces.LongPollingUpdateConsumer;
+import org.telegram.telegrambots.longpolling.util.LongPollingSingleThreadUpdateConsumer;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.LongConsumer;
+
+public class ChatOrderedDispatcher implements LongPollingUpdateConsumer, AutoCloseable {
+
+    /*
+     Hands updates to the bot on virtual threads, so one slow chat doesn't hold up the rest.
+     Each chat has its own lane: its updates run one at a time, in the order they arrived,
+     so the chat's session state is never updated from two threads at once.
+     At most maxParallel updates run at the same time, and a chat with more than
+     maxQueuedPerChat updates waiting has further updates dropped. The first one dropped
+     is passed to onOverflow, so the user can be told to slow down, and once the chat
+     has caught up the next drop is passed on again.
+     */
+
+    private static final class Lane {
+        private final ArrayDeque<Update> queue = new ArrayDeque<>();
+        private Update next;
+        // the chat has been told it is sending too fast
+        private boolean overflowed;
+    }
+
+    // what dispatch() decided for an update
+    private enum Admission { STARTED, QUEUED, OVERFLOWED, DROPPED }
+
+    private final LongPollingSingleThreadUpdateConsumer handler;
+    private final LongConsumer onOverflow;
+    private final int maxQueuedPerChat;
+    private final Semaphore running;
+    private final ExecutorService executor;
+    private final Map<Long, Lane> lanes;
+    private final Logger logger;
+
+    public ChatOrderedDispatcher(LongPollingSingleThreadUpdateConsumer handler, int maxParallel, int maxQueuedPerChat,
+                                 LongConsumer onOverflow) {
+        this.handler = handler;
+        this.onOverflow = onOverflow;
+        this.maxQueuedPerChat = maxQueuedPerChat;
+        this.running = new Semaphore(maxParallel);
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        this.lanes = new ConcurrentHashMap<>();
+        this.logger = LoggerFactory.getLogger(ChatOrderedDispatcher.class);
+    }
+
+    @Override
+    public void consume(List<Update> updates) {
+        for (Update update : updates) {
+            dispatch(update);
+        }
+    }
+
+    public void dispatch(Update update) {
+        long chatId = chatIdOf(update);
+        // compute() runs atomically per chat, so lanes are never lost or doubled up.
+        // it only decides what happens, the lane is started or the user told once it has returned
+        Admission[] admission = new Admission[1];
+        Lane lane = lanes.compute(chatId, (id, current) -> {
+            if (current == null) {
+                current = new Lane();
+                current.next = update;
+                admission[0] = Admission.STARTED;
+            } else if (current.queue.size() >= maxQueuedPerChat) {
+                admission[0] = current.overflowed ? Admission.DROPPED : Admission.OVERFLOWED;
+                current.overflowed = true;
+            } else {
+                current.queue.add(update);
+                admission[0] = Admission.QUEUED;
+            }
+            return current;
+        });
+
+        switch (admission[0]) {
+            case STARTED -> executor.execute(() -> drain(chatId, lane));
+            case OVERFLOWED -> {
+                logger.warn("Too many updates waiting in chat {}, dropping update {}", chatId, update.getUpdateId());
+                // updates that aren't messages have no chat to answer
+                if (chatId != 0L) {
+                    onOverflow.accept(chatId);
+                }
+            }
+            case DROPPED -> logger.debug("Still too many updates waiting in chat {}, dropping update {}",
+                    chatId, update.getUpdateId());
+            case QUEUED -> {
+            }
+        }
+    }
+
+    private void drain(long chatId, Lane lane) {
+        Update update = lane.next;
+        while (update != null) {
+            process(update);
+            // take the next update, or retire the lane if there are none
+            Lane current = lanes.computeIfPresent(chatId, (id, l) -> {
+                l.next = l.queue.poll();
+                if (l.queue.isEmpty()) {
+                    // caught up, so the next overflow is worth telling the user about
+                    l.overflowed = false;
+                }
+                return l.next == null ? null : l;
+            });
+            update = current != null ? current.next : null;
+        }
+    }
+
+    private void process(Update update) {
+        try {
+            running.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            handler.consume(update);
+        } catch (RuntimeException e) {
+            logger.error(e.getMessage(), e);
+        } finally {
+            running.release();
+        }
+    }
+
+    private static long chatIdOf(Update update) {
+        // updates that aren't messages share one lane
+        if (update.hasMessage()) {
+            return update.getMessage().getChatId();
+        }
+        return 0L;
+    }
+
+    @Override
+    public void close() {
+        // waits for the updates already handed out
+        executor.close();
+    }
+}
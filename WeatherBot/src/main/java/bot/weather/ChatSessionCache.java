@@ -0,0 +1,74 @@
+package bot.weather;
+
+import bot.weather.BotDatabase.SavedPlace;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ChatSessionCache {
+
+    /*
+     In-memory copy of what each update needs to know about a chat, keyed on chat id:
+     its chat_status row, its current location and the user's name.
+     BotDatabase writes through to sqlite first (or queues the write) and then updates this cache,
+     so reads never need to touch the disk once a chat has been seen.
+     The least recently used chats are evicted once the cache is full.
+     */
+
+    public record ChatSession(boolean active, boolean wxRequested, boolean infoRequested,
+                              SavedPlace place, String userName) {
+
+        public static final ChatSession INACTIVE = new ChatSession(false, false, false, null, null);
+
+        public ChatSession withWxRequested(boolean wxRequested) {
+            return new ChatSession(active, wxRequested, infoRequested, place, userName);
+        }
+
+        public ChatSession withInfoRequested(boolean infoRequested) {
+            return new ChatSession(active, wxRequested, infoRequested, place, userName);
+        }
+
+        public ChatSession withStatus(boolean active, boolean wxRequested, boolean infoRequested) {
+            return new ChatSession(active, wxRequested, infoRequested, place, userName);
+        }
+
+        public ChatSession withPlace(SavedPlace place) {
+            return new ChatSession(active, wxRequested, infoRequested, place, userName);
+        }
+
+        public ChatSession withUserName(String userName) {
+            return new ChatSession(active, wxRequested, infoRequested, place, userName);
+        }
+    }
+
+    private final Map<Long, ChatSession> sessions;
+
+    public ChatSessionCache(int maxSize) {
+        // access ordered, so the eldest entry is the least recently used
+        this.sessions = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, ChatSession> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public synchronized ChatSession get(long chatId) {
+        return sessions.get(chatId);
+    }
+
+    public synchronized void put(long chatId, ChatSession session) {
+        sessions.put(chatId, session);
+    }
+
+    public synchronized void putIfAbsent(long chatId, ChatSession session) {
+        sessions.putIfAbsent(chatId, session);
+    }
+
+    public synchronized void invalidate(long chatId) {
+        sessions.remove(chatId);
+    }
+
+    public synchronized int size() {
+        return sessions.size();
+    }
+}
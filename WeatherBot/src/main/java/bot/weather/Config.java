@@ -0,0 +1,54 @@
+package bot.weather;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.util.Properties;
+
+public class Config {
+
+    /* Typed access to config.properties, falling back to a default for missing or bad values. */
+
+    private final Properties properties;
+    private final Logger logger;
+
+    public Config(Properties properties) {
+        this.properties = properties != null ? properties : new Properties();
+        this.logger = LoggerFactory.getLogger(Config.class);
+    }
+
+    public String getString(String key, String fallback) {
+        String value = properties.getProperty(key);
+        return value == null || value.isBlank() ? fallback : value.trim();
+    }
+
+    public int getInt(String key, int fallback) {
+        String value = getString(key, null);
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            logger.warn("Ignoring bad value for {}: {}", key, value);
+            return fallback;
+        }
+    }
+
+    public double getDouble(String key, double fallback) {
+        String value = getString(key, null);
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            logger.warn("Ignoring bad value for {}: {}", key, value);
+            return fallback;
+        }
+    }
+
+    public boolean getBoolean(String key, boolean fallback) {
+        String value = getString(key, null);
+        return value == null ? fallback : Boolean.parseBoolean(value);
+    }
+}
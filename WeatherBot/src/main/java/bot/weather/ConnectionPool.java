@@ -0,0 +1,155 @@
+package bot.weather;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class ConnectionPool implements AutoCloseable {
+
+    /*
+     Keeps a fixed number of SQLite connections open for the life of the process.
+     A caller borrows one connection at a time, and each connection keeps its own
+     cache of prepared statements keyed on the sql text, so nothing is re-parsed.
+     Every connection is opened in WAL mode, so the write-behind thread committing
+     never blocks the readers, with synchronous=NORMAL (WAL stays consistent after a crash,
+     and only the last commits before a power cut can be lost) and the file memory-mapped
+     so reads come straight from the page cache.
+     */
+
+    private static final long ACQUIRE_TIMEOUT_MS = 30_000;
+    private static final int BUSY_TIMEOUT_MS = 5_000;
+    private static final long MMAP_SIZE = 256L * 1024 * 1024;
+
+    private final BlockingQueue<PooledConnection> idle;
+    private final Logger logger;
+    private volatile boolean closed;
+
+    public ConnectionPool(String url, int size) throws SQLException {
+        this.idle = new ArrayBlockingQueue<>(size);
+        this.logger = LoggerFactory.getLogger(ConnectionPool.class);
+
+        try {
+            for (int i = 0; i < size; i++) {
+                Connection connection = DriverManager.getConnection(url);
+                try (Statement statement = connection.createStatement()) {
+                    // wait on a locked database rather than failing straight away
+                    statement.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MS);
+                    // stays set in the file once one connection has switched it, in-memory databases keep "memory"
+                    try (ResultSet rs = statement.executeQuery("PRAGMA journal_mode = WAL")) {
+                        if (i == 0 && rs.next() && !rs.getString(1).equalsIgnoreCase("wal")) {
+                            logger.warn("Database is using journal mode {} rather than WAL.", rs.getString(1));
+                        }
+                    }
+                    statement.execute("PRAGMA synchronous = NORMAL");
+                    statement.execute("PRAGMA mmap_size = " + MMAP_SIZE);
+                }
+                idle.add(new PooledConnection(connection));
+            }
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+        logger.info("Opened {} database connections.", size);
+    }
+
+    public PooledConnection acquire() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed.");
+        }
+        try {
+            PooledConnection connection = idle.poll(ACQUIRE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (connection == null) {
+                throw new SQLException("Timed out waiting for a database connection.");
+            }
+            return connection;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a database connection.", e);
+        }
+    }
+
+    private void release(PooledConnection connection) {
+        idle.offer(connection);
+        if (closed && idle.remove(connection)) {
+            connection.closeQuietly();
+        }
+    }
+
+    @Override
+    public void close() {
+        // connections still borrowed are closed as they come back
+        closed = true;
+        List<PooledConnection> unused = new ArrayList<>();
+        idle.drainTo(unused);
+        for (PooledConnection connection : unused) {
+            connection.closeQuietly();
+        }
+    }
+
+    public class PooledConnection implements AutoCloseable {
+
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements;
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+            this.statements = new HashMap<>();
+        }
+
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            } else {
+                statement.clearParameters();
+            }
+            return statement;
+        }
+
+        public Statement createStatement() throws SQLException {
+            return connection.createStatement();
+        }
+
+        public Connection connection() {
+            return connection;
+        }
+
+        @Override
+        public void close() {
+            // hand back to the pool, leaving no half finished transaction behind
+            try {
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                logger.error(e.getMessage(), e);
+            }
+            release(this);
+        }
+
+        private void closeQuietly() {
+            for (PreparedStatement statement : statements.values()) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    logger.warn(e.getMessage());
+                }
+            }
+            statements.clear();
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                logger.warn(e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package bot.weather;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ForecastCache {
+
+    /*
+     Forecasts keyed on grid cell, kept until met.no's Expires time.
+     An expired entry is kept around with its Last-Modified value, so it can be
+     revalidated with If-Modified-Since rather than downloaded again.
+     The least recently used cells are evicted once the cache is full.
+     With a store, every entry is also written to disk and read back on startup,
+     so a restart comes up warm; expired ones are kept a day for revalidation.
+     */
+
+    private static final Duration STALE_RETENTION = Duration.ofDays(1);
+
+    public record Entry(ForecastSummary summary, Instant expires, String lastModified) {
+
+        public ForecastSeries forecast() {
+            return summary.forecast();
+        }
+
+        public boolean isFresh(Instant now) {
+            return now.isBefore(expires);
+        }
+
+        public Entry withExpires(Instant expires) {
+            return new Entry(summary, expires, lastModified);
+        }
+    }
+
+    private final Map<GridCell, Entry> entries;
+    private final MappedCacheStore store;
+
+    public ForecastCache(int maxSize, MappedCacheStore store) {
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<GridCell, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+        this.store = store;
+        if (store != null) {
+            for (MappedCacheStore.Record record : store.load(MappedCacheStore.FORECAST)) {
+                entries.put(record.cell(), decode(record.cell(), record.payload()));
+            }
+        }
+    }
+
+    public synchronized Entry get(GridCell cell) {
+        return entries.get(cell);
+    }
+
+    public synchronized void put(GridCell cell, Entry entry) {
+        entries.put(cell, entry);
+        if (store != null) {
+            store.put(MappedCacheStore.FORECAST, cell, entry.expires().plus(STALE_RETENTION), encode(entry));
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static byte[] encode(Entry entry) {
+        // expires (epoch millis), Last-Modified (length and utf-8, -1 if none), then the series
+        byte[] lastModified = entry.lastModified() != null
+                ? entry.lastModified().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        ForecastSeries forecast = entry.forecast();
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 2 + lastModified.length + forecast.byteSize());
+        buffer.putLong(entry.expires().toEpochMilli());
+        buffer.putShort((short) (entry.lastModified() != null ? lastModified.length : -1));
+        buffer.put(lastModified);
+        forecast.writeTo(buffer);
+        return buffer.array();
+    }
+
+    private static Entry decode(GridCell cell, ByteBuffer buffer) {
+        Instant expires = Instant.ofEpochMilli(buffer.getLong());
+        short length = buffer.getShort();
+        String lastModified = null;
+        if (length >= 0) {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            lastModified = new String(bytes, StandardCharsets.UTF_8);
+        }
+        ForecastSeries forecast = ForecastSeries.readFrom(buffer);
+        return new Entry(ForecastSummary.of(forecast, cell.longitude()), expires, lastModified);
+    }
+}
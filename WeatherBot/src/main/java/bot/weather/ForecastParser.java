@@ -0,0 +1,157 @@
+package bot.weather;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.function.ObjDoubleConsumer;
+
+public class ForecastParser {
+
+    /*
+     Reads a met.no locationforecast response into a ForecastSeries as it streams in.
+     Only the numbers in properties.timeseries are kept; everything else is skipped
+     over without being built into objects.
+     */
+
+    private final JsonFactory factory;
+
+    public ForecastParser() {
+        this.factory = new JsonFactory();
+    }
+
+    // null if the response has no timeseries
+    public ForecastSeries parse(InputStream in) throws IOException {
+        try (JsonParser parser = factory.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT
+                    || !moveToField(parser, "properties") || parser.nextToken() != JsonToken.START_OBJECT
+                    || !moveToField(parser, "timeseries") || parser.nextToken() != JsonToken.START_ARRAY) {
+                return null;
+            }
+
+            ForecastSeries.Builder series = new ForecastSeries.Builder();
+            JsonToken token;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+                if (token == JsonToken.START_OBJECT) {
+                    readEntry(parser, series);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return series.build();
+        }
+    }
+
+    private void readEntry(JsonParser parser, ForecastSeries.Builder series) throws IOException {
+        Instant time = null;
+        double[] details = {Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN};
+        double[] precipitation = {Double.NaN, Double.NaN};
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if (field.equals("time") && value == JsonToken.VALUE_STRING) {
+                time = parseTime(parser.getText());
+            } else if (field.equals("data") && value == JsonToken.START_OBJECT) {
+                readData(parser, details, precipitation);
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        if (time != null) {
+            series.add(time.getEpochSecond(), details[0], details[1], details[2], details[3], details[4],
+                    precipitation[0], precipitation[1]);
+        }
+    }
+
+    private interface DetailsReader {
+        void read(JsonParser parser) throws IOException;
+    }
+
+    private void readData(JsonParser parser, double[] details, double[] precipitation) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if (field.equals("instant") && value == JsonToken.START_OBJECT) {
+                readDetails(parser, p -> readInstantDetails(p, details));
+            } else if (field.equals("next_1_hours") && value == JsonToken.START_OBJECT) {
+                readDetails(parser, p -> readPrecipitation(p, precipitation, 0));
+            } else if (field.equals("next_6_hours") && value == JsonToken.START_OBJECT) {
+                readDetails(parser, p -> readPrecipitation(p, precipitation, 1));
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private static void readDetails(JsonParser parser, DetailsReader reader) throws IOException {
+        // reads the "details" object inside the current one, skipping everything else
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if (field.equals("details") && value == JsonToken.START_OBJECT) {
+                reader.read(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private void readInstantDetails(JsonParser parser, double[] details) throws IOException {
+        readNumbers(parser, (field, number) -> {
+            switch (field) {
+                case "air_temperature" -> details[0] = number;
+                case "wind_speed" -> details[1] = number;
+                case "relative_humidity" -> details[2] = number;
+                case "air_pressure_at_sea_level" -> details[3] = number;
+                case "cloud_area_fraction" -> details[4] = number;
+                default -> { }
+            }
+        });
+    }
+
+    private void readPrecipitation(JsonParser parser, double[] precipitation, int period) throws IOException {
+        readNumbers(parser, (field, number) -> {
+            if (field.equals("precipitation_amount")) {
+                precipitation[period] = number;
+            }
+        });
+    }
+
+    private static void readNumbers(JsonParser parser, ObjDoubleConsumer<String> sink) throws IOException {
+        // every numeric field of the current object, up to its end
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if (value.isNumeric()) {
+                sink.accept(field, parser.getDoubleValue());
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private static boolean moveToField(JsonParser parser, String name) throws IOException {
+        // leaves the parser on the field name, or at the end of the object if it isn't there
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            if (parser.currentName().equals(name)) {
+                return true;
+            }
+            parser.nextToken();
+            parser.skipChildren();
+        }
+        return false;
+    }
+
+    private static Instant parseTime(String text) {
+        try {
+            return Instant.parse(text);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+}
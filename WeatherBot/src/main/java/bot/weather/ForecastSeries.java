@@ -0,0 +1,164 @@
+package bot.weather;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Arrays;
+
+public final class ForecastSeries {
+
+    /*
+     A met.no timeseries held column by column in primitive arrays, one row per forecast time.
+     Instances are immutable, so the one parsed for a grid cell is shared by every chat asking about it.
+     Values met.no doesn't give for a row (precipitation far ahead, say) are NaN.
+     */
+
+    private final long[] times; // epoch seconds
+    private final float[] temperature;
+    private final float[] windSpeed;
+    private final float[] humidity;
+    private final float[] pressure;
+    private final float[] cloudCover;
+    private final float[] precipitation1h;
+    private final float[] precipitation6h;
+
+    private ForecastSeries(Builder builder) {
+        int size = builder.size;
+        this.times = Arrays.copyOf(builder.times, size);
+        this.temperature = Arrays.copyOf(builder.temperature, size);
+        this.windSpeed = Arrays.copyOf(builder.windSpeed, size);
+        this.humidity = Arrays.copyOf(builder.humidity, size);
+        this.pressure = Arrays.copyOf(builder.pressure, size);
+        this.cloudCover = Arrays.copyOf(builder.cloudCover, size);
+        this.precipitation1h = Arrays.copyOf(builder.precipitation1h, size);
+        this.precipitation6h = Arrays.copyOf(builder.precipitation6h, size);
+    }
+
+    public int size() {
+        return times.length;
+    }
+
+    public boolean isEmpty() {
+        return times.length == 0;
+    }
+
+    public long epochSecond(int row) {
+        return times[row];
+    }
+
+    public Instant time(int row) {
+        return Instant.ofEpochSecond(times[row]);
+    }
+
+    public float temperature(int row) {
+        return temperature[row];
+    }
+
+    public float windSpeed(int row) {
+        return windSpeed[row];
+    }
+
+    public float humidity(int row) {
+        return humidity[row];
+    }
+
+    public float pressure(int row) {
+        return pressure[row];
+    }
+
+    public float cloudCover(int row) {
+        return cloudCover[row];
+    }
+
+    public float precipitation1h(int row) {
+        return precipitation1h[row];
+    }
+
+    public float precipitation6h(int row) {
+        return precipitation6h[row];
+    }
+
+    // the row in force at the given time: the last one not after it, or the first row
+    public int rowAt(Instant instant) {
+        int found = Arrays.binarySearch(times, instant.getEpochSecond());
+        if (found >= 0) {
+            return found;
+        }
+        int insertion = -found - 1;
+        return Math.max(0, insertion - 1);
+    }
+
+    // the size of the series written by writeTo
+    public int byteSize() {
+        return 4 + times.length * (8 + 7 * 4);
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putInt(times.length);
+        for (int row = 0; row < times.length; row++) {
+            buffer.putLong(times[row])
+                    .putFloat(temperature[row])
+                    .putFloat(windSpeed[row])
+                    .putFloat(humidity[row])
+                    .putFloat(pressure[row])
+                    .putFloat(cloudCover[row])
+                    .putFloat(precipitation1h[row])
+                    .putFloat(precipitation6h[row]);
+        }
+    }
+
+    public static ForecastSeries readFrom(ByteBuffer buffer) {
+        int size = buffer.getInt();
+        Builder builder = new Builder();
+        for (int row = 0; row < size; row++) {
+            builder.add(buffer.getLong(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat(),
+                    buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+        }
+        return builder.build();
+    }
+
+    public static class Builder {
+
+        private long[] times = new long[96];
+        private float[] temperature = new float[96];
+        private float[] windSpeed = new float[96];
+        private float[] humidity = new float[96];
+        private float[] pressure = new float[96];
+        private float[] cloudCover = new float[96];
+        private float[] precipitation1h = new float[96];
+        private float[] precipitation6h = new float[96];
+        private int size;
+
+        public Builder add(long epochSecond, double temperature, double windSpeed, double humidity, double pressure,
+                           double cloudCover, double precipitation1h, double precipitation6h) {
+            if (size == times.length) {
+                grow();
+            }
+            this.times[size] = epochSecond;
+            this.temperature[size] = (float) temperature;
+            this.windSpeed[size] = (float) windSpeed;
+            this.humidity[size] = (float) humidity;
+            this.pressure[size] = (float) pressure;
+            this.cloudCover[size] = (float) cloudCover;
+            this.precipitation1h[size] = (float) precipitation1h;
+            this.precipitation6h[size] = (float) precipitation6h;
+            size++;
+            return this;
+        }
+
+        public ForecastSeries build() {
+            return new ForecastSeries(this);
+        }
+
+        private void grow() {
+            int capacity = times.length * 2;
+            times = Arrays.copyOf(times, capacity);
+            temperature = Arrays.copyOf(temperature, capacity);
+            windSpeed = Arrays.copyOf(windSpeed, capacity);
+            humidity = Arrays.copyOf(humidity, capacity);
+            pressure = Arrays.copyOf(pressure, capacity);
+            cloudCover = Arrays.copyOf(cloudCover, capacity);
+            precipitation1h = Arrays.copyOf(precipitation1h, capacity);
+            precipitation6h = Arrays.copyOf(precipitation6h, capacity);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package bot.weather;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public final class ForecastSummary {
+
+    /*
+     Aggregates over a cached ForecastSeries: the precipitation falling in each row's period,
+     and min/max temperature, total precipitation and peak wind for each day.
+     Built once when a forecast is cached, and shared by every chat asking about the cell.
+     Days run on the cell's solar time (longitude / 15 hours from UTC), as a stand-in
+     for the local time zone, which we don't know.
+     */
+
+    public record Aggregate(Instant start, Instant end, float minTemperature, float maxTemperature,
+                            float precipitation, float maxWindSpeed) {
+    }
+
+    private final ForecastSeries forecast;
+    private final ZoneOffset offset;
+    // mm falling between each row and the next
+    private final float[] precipitation;
+    private final List<Aggregate> days;
+
+    private ForecastSummary(ForecastSeries forecast, ZoneOffset offset) {
+        this.forecast = forecast;
+        this.offset = offset;
+        this.precipitation = new float[forecast.size()];
+        for (int row = 0; row < forecast.size(); row++) {
+            precipitation[row] = periodPrecipitation(forecast, row);
+        }
+        this.days = Collections.unmodifiableList(summarizeDays());
+    }
+
+    public static ForecastSummary of(ForecastSeries forecast, double longitude) {
+        int hours = (int) Math.round(longitude / 15.0);
+        return new ForecastSummary(forecast, ZoneOffset.ofHours(Math.max(-12, Math.min(14, hours))));
+    }
+
+    public ForecastSeries forecast() {
+        return forecast;
+    }
+
+    public ZoneOffset offset() {
+        return offset;
+    }
+
+    public float precipitation(int row) {
+        return precipitation[row];
+    }
+
+    public List<Aggregate> days() {
+        return days;
+    }
+
+    // the days from the one containing the given time onwards
+    public List<Aggregate> daysFrom(Instant now, int count) {
+        LocalDate today = LocalDate.ofInstant(now, offset);
+        List<Aggregate> upcoming = new ArrayList<>();
+        for (Aggregate day : days) {
+            if (upcoming.size() == count) {
+                break;
+            }
+            if (!LocalDate.ofInstant(day.start(), offset).isBefore(today)) {
+                upcoming.add(day);
+            }
+        }
+        return upcoming;
+    }
+
+    // the rows from fromRow up to the given time; null if there aren't any
+    public Aggregate aggregate(int fromRow, Instant end) {
+        long until = end.getEpochSecond();
+        Accumulator accumulator = new Accumulator();
+        for (int row = fromRow; row < forecast.size() && forecast.epochSecond(row) < until; row++) {
+            accumulator.add(row);
+        }
+        return accumulator.build(end);
+    }
+
+    private List<Aggregate> summarizeDays() {
+        List<Aggregate> summaries = new ArrayList<>();
+        Accumulator day = null;
+        LocalDate date = null;
+        for (int row = 0; row < forecast.size(); row++) {
+            LocalDate rowDate = LocalDate.ofInstant(forecast.time(row), offset);
+            if (!rowDate.equals(date)) {
+                if (day != null) {
+                    summaries.add(day.build(date.plusDays(1).atStartOfDay().toInstant(offset)));
+                }
+                day = new Accumulator();
+                date = rowDate;
+            }
+            day.add(row);
+        }
+        if (day != null) {
+            summaries.add(day.build(date.plusDays(1).atStartOfDay().toInstant(offset)));
+        }
+        return summaries;
+    }
+
+    private static float periodPrecipitation(ForecastSeries forecast, int row) {
+        // hourly rows carry next_1_hours; further ahead the rows are 6 hours apart and only
+        // carry next_6_hours, so each row counts the amount up to the next one
+        long step = row + 1 < forecast.size() ? forecast.epochSecond(row + 1) - forecast.epochSecond(row) : 3600;
+        float hour = forecast.precipitation1h(row);
+        float sixHours = forecast.precipitation6h(row);
+        if (step <= 3600 && !Float.isNaN(hour)) {
+            return hour;
+        }
+        if (!Float.isNaN(sixHours)) {
+            return sixHours * Math.min(step, 21600) / 21600f;
+        }
+        return hour;
+    }
+
+    private final class Accumulator {
+        private Instant start;
+        private float minTemperature = Float.NaN;
+        private float maxTemperature = Float.NaN;
+        private float totalPrecipitation = Float.NaN;
+        private float maxWindSpeed = Float.NaN;
+
+        private void add(int row) {
+            if (start == null) {
+                start = forecast.time(row);
+            }
+            // NaN means met.no didn't send it, so it is left out rather than spoiling the lot
+            float temperature = forecast.temperature(row);
+            if (!Float.isNaN(temperature)) {
+                minTemperature = Float.isNaN(minTemperature) ? temperature : Math.min(minTemperature, temperature);
+                maxTemperature = Float.isNaN(maxTemperature) ? temperature : Math.max(maxTemperature, temperature);
+            }
+            float amount = precipitation[row];
+            if (!Float.isNaN(amount)) {
+                totalPrecipitation = Float.isNaN(totalPrecipitation) ? amount : totalPrecipitation + amount;
+            }
+            float wind = forecast.windSpeed(row);
+            if (!Float.isNaN(wind)) {
+                maxWindSpeed = Float.isNaN(maxWindSpeed) ? wind : Math.max(maxWindSpeed, wind);
+            }
+        }
+
+        private Aggregate build(Instant end) {
+            if (start == null) {
+                return null;
+            }
+            return new Aggregate(start, end, minTemperature, maxTemperature, totalPrecipitation, maxWindSpeed);
+        }
+    }
+}
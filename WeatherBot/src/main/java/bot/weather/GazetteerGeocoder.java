@@ -0,0 +1,135 @@
+package bot.weather;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+public class GazetteerGeocoder implements GeocodingBackend {
+
+    /*
+     Geocodes from a local GeoNames dump (e.g. cities15000.txt from
+     https://download.geonames.org/export/dump/) with no network calls.
+     Reverse lookups use a k-d tree of every place, and give up beyond maxDistanceKm.
+     Forward lookups use a hash index on the normalised name and ascii name,
+     plus "name,cc" with the country code. Where names clash, the larger place wins.
+     */
+
+    // columns of the geonames tab separated format
+    private static final int NAME = 1;
+    private static final int ASCII_NAME = 2;
+    private static final int LATITUDE = 4;
+    private static final int LONGITUDE = 5;
+    private static final int COUNTRY_CODE = 8;
+    private static final int POPULATION = 14;
+
+    private final String[] names;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final KdTree tree;
+    private final Map<String, Integer> index;
+    private final double maxDistanceKm;
+    private final Logger logger;
+
+    public GazetteerGeocoder(Path file, double maxDistanceKm) throws IOException {
+        this.maxDistanceKm = maxDistanceKm;
+        this.logger = LoggerFactory.getLogger(GazetteerGeocoder.class);
+
+        List<String> nameList = new ArrayList<>();
+        List<String> asciiList = new ArrayList<>();
+        List<String> countryList = new ArrayList<>();
+        List<double[]> coordList = new ArrayList<>();
+        List<Long> populationList = new ArrayList<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length <= POPULATION) {
+                    continue;
+                }
+                try {
+                    coordList.add(new double[] {Double.parseDouble(fields[LATITUDE]), Double.parseDouble(fields[LONGITUDE])});
+                    populationList.add(fields[POPULATION].isEmpty() ? 0L : Long.parseLong(fields[POPULATION]));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                nameList.add(fields[NAME]);
+                asciiList.add(fields[ASCII_NAME]);
+                countryList.add(fields[COUNTRY_CODE].toLowerCase(Locale.ROOT));
+            }
+        }
+
+        int size = coordList.size();
+        this.names = new String[size];
+        this.latitudes = new double[size];
+        this.longitudes = new double[size];
+        this.index = new HashMap<>(size * 4);
+
+        long[] populations = new long[size];
+        for (int i = 0; i < size; i++) {
+            names[i] = nameList.get(i);
+            latitudes[i] = coordList.get(i)[0];
+            longitudes[i] = coordList.get(i)[1];
+            populations[i] = populationList.get(i);
+
+            String country = countryList.get(i);
+            // the ascii name is only used for lookups
+            for (String name : new String[] {names[i], asciiList.get(i)}) {
+                String key = PlaceQueryCache.normalize(name);
+                addToIndex(key, i, populations);
+                addToIndex(key + "," + country, i, populations);
+            }
+        }
+
+        this.tree = new KdTree(latitudes, longitudes);
+        logger.info("Loaded {} places from {}", size, file);
+    }
+
+    @Override
+    public String name() {
+        return "gazetteer";
+    }
+
+    @Override
+    public String findName(double latitude, double longitude) {
+        int nearest = tree.nearest(latitude, longitude);
+        if (nearest < 0) {
+            return null;
+        }
+        double distance = KdTree.distanceKm(latitude, longitude, latitudes[nearest], longitudes[nearest]);
+        if (distance > maxDistanceKm) {
+            logger.debug("Nearest place {} is {} km away", names[nearest], distance);
+            return null;
+        }
+        return names[nearest];
+    }
+
+    @Override
+    public Place findPlace(String place) {
+        // "Oslo", "oslo, no" and "Oslo,NO" all look the same after this
+        String key = PlaceQueryCache.normalize(place).replaceAll("\\s*,\\s*", ",");
+        Integer found = index.get(key);
+        if (found == null && key.contains(",")) {
+            // e.g. "Bergen, Norway", where the country isn't a code
+            found = index.get(key.substring(0, key.indexOf(',')));
+        }
+        if (found == null) {
+            return null;
+        }
+        return new Place(names[found], latitudes[found], longitudes[found]);
+    }
+
+    private void addToIndex(String key, int place, long[] populations) {
+        index.merge(key, place, (current, candidate) ->
+                populations[candidate] > populations[current] ? candidate : current);
+    }
+}
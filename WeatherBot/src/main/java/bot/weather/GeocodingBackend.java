@@ -0,0 +1,20 @@
+package bot.weather;
+
+import java.io.IOException;
+
+public interface GeocodingBackend {
+
+    /*
+     A source of place names and coordinates for the Geolocator.
+     Both lookups return null when nothing matches, and throw IOException
+     when the source itself can't be used, so the next backend can be tried.
+     */
+
+    record Place(String name, double latitude, double longitude) {}
+
+    String name();
+
+    String findName(double latitude, double longitude) throws IOException;
+
+    Place findPlace(String place) throws IOException;
+}
@@ -1,111 +1,158 @@
 package bot.weather;
 
 import java.io.IOException;
-import java.net.URI;
-import java.net.URLEncoder;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.nio.charset.StandardCharsets;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.util.concurrent.RateLimiter;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.telegram.telegrambots.meta.api.objects.Location;
 
 public class Geolocator {
 
-    private final String apiKey;
-    private String limit;
-    private final Logger logger;
-    private final ObjectMapper objectMapper;
-    private static final String DIRECT_URL = "http://api.openweathermap.org/geo/1.0/direct?q=%s&limit=%s&appid=%s";
-    private static final String REVERSE_URL = "http://api.openweathermap.org/geo/1.0/reverse?lat=%s&lon=%s&limit=%s&appid=%s";
-    private static final RateLimiter limiter = RateLimiter.create(1.0);
+    /*
+     Finds place names for coordinates and coordinates for place names.
+     Results are cached, and misses are asked of each backend in turn:
+     the local gazetteer first when geocoder.gazetteerFile is set, then openweathermap.
+     */
 
-    public Geolocator(String apiKey) {
-        this.apiKey = apiKey;
+    private final Logger logger;
+    private final List<GeocodingBackend> backends;
+    private final PlaceNameCache placeNames;
+    private final PlaceQueryCache places;
+    private final SingleFlight<GridCell, String> namesInFlight;
+    private final SingleFlight<String, GeocodingBackend.Place> placesInFlight;
+    private final ExecutorService lookups;
+
+    public Geolocator(String apiKey, UpstreamScheduler upstream, Config config, MappedCacheStore store) {
         this.logger = LoggerFactory.getLogger(Geolocator.class);
-        this.objectMapper = new ObjectMapper();
-        this.limit = "1";
-    }
-
-    public String findName(double latitude, double longitude) {
-        // reverse geocode
 
-        try {
-            String lat = URLEncoder.encode(String.valueOf(latitude), StandardCharsets.UTF_8);
-            String lon = URLEncoder.encode(String.valueOf(longitude), StandardCharsets.UTF_8);
-
-            String url = String.format(REVERSE_URL, lat, lon, this.limit, this.apiKey);
-            logger.debug(url);
-            HttpResponse<String> response;
-
-            try (HttpClient client = HttpClient.newHttpClient()) {
-                limiter.acquire();
-                HttpRequest request = HttpRequest.newBuilder()
-                        .uri(URI.create(url))
-                        .build();
-                response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        this.namesInFlight = new SingleFlight<>("reverse geocode");
+        this.placesInFlight = new SingleFlight<>("geocode");
+        this.lookups = Executors.newVirtualThreadPerTaskExecutor();
+
+        this.backends = new ArrayList<>();
+        String gazetteerFile = config.getString("geocoder.gazetteerFile", null);
+        if (gazetteerFile != null) {
+            try {
+                double maxDistanceKm = config.getDouble("geocoder.gazetteerMaxDistanceKm", 50);
+                backends.add(new GazetteerGeocoder(Path.of(gazetteerFile), maxDistanceKm));
+            } catch (IOException e) {
+                logger.error("Could not load gazetteer {}: {}", gazetteerFile, e.getMessage());
             }
+        }
+        if (!config.getBoolean("geocoder.offline", false)) {
+            backends.add(new OpenWeatherGeocoder(apiKey, upstream, config));
+        }
 
-            JsonNode jsonRoot = objectMapper.readTree(response.body());
-            if (jsonRoot.isArray() && jsonRoot.size() > 0) {
-                JsonNode locationNode = jsonRoot.get(0);
-                String name = locationNode.path("name").asText();
-                logger.info("Name = {}", name);
-                return name;
-            } else {
-                return null;
+        int cacheSize = config.getInt("geocoder.reverseCacheSize", 5000);
+        this.placeNames = new PlaceNameCache(config.getInt("geocoder.reverseCachePrecision", 2), cacheSize, store);
+        // start from the names users have already been given, oldest first so newer names win
+        for (BotDatabase.SavedPlace place : BotDatabase.getSavedPlaces(cacheSize).reversed()) {
+            // a place saved without a name may just have been slow to look up, so it's asked again
+            if (place.placeName() != null) {
+                placeNames.put(place.latitude(), place.longitude(), place.placeName());
             }
+        }
+        logger.info("Loaded {} saved place names.", placeNames.size());
 
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+        int queryCacheSize = config.getInt("geocoder.queryCacheSize", 5000);
+        Duration missTtl = Duration.ofSeconds(config.getInt("geocoder.missTtlSeconds", 600));
+        this.places = new PlaceQueryCache(queryCacheSize, missTtl);
+        for (BotDatabase.CachedGeocode geocode : BotDatabase.getGeocodes(queryCacheSize).reversed()) {
+            places.putFound(geocode.query(), geocode.latitude(), geocode.longitude(), geocode.placeName());
         }
+        logger.info("Loaded {} cached place queries.", places.size());
+    }
 
+    public CompletableFuture<String> findNameAsync(double latitude, double longitude) {
+        // reverse geocode, completing with null if there's no name
+
+        String cached = placeNames.get(latitude, longitude);
+        if (cached != null) {
+            logger.debug("Place name cache hit: {}", cached);
+            return CompletableFuture.completedFuture(cached.isEmpty() ? null : cached);
+        }
+
+        // the backends block, so they get a virtual thread of their own
+        return namesInFlight.submit(placeNames.cellOf(latitude, longitude),
+                () -> CompletableFuture.supplyAsync(() -> lookUpName(latitude, longitude), lookups));
     }
 
-    public Location findPlace(String place) {
-        // geocode
+    private String lookUpName(double latitude, double longitude) {
+        boolean failed = false;
+        for (GeocodingBackend backend : backends) {
+            try {
+                String name = backend.findName(latitude, longitude);
+                if (name != null) {
+                    placeNames.put(latitude, longitude, name);
+                    return name;
+                }
+            } catch (IOException e) {
+                logger.warn("Reverse geocoding with {} failed: {}", backend.name(), e.getMessage());
+                failed = true;
+            }
+        }
+
+        if (!failed) {
+            // nothing there, no point asking again
+            placeNames.put(latitude, longitude, null);
+        }
+        return null;
+    }
 
+    public GeocodingBackend.Place findPlace(String place) {
+        // geocode, null if the place isn't found or the lookup failed
         try {
-            String safePlace = URLEncoder.encode(place, StandardCharsets.UTF_8);
-            String url = String.format(DIRECT_URL, safePlace, this.limit, this.apiKey);
-            logger.debug(url);
-            HttpResponse<String> response;
-
-            try (HttpClient client = HttpClient.newHttpClient()) {
-                HttpRequest request = HttpRequest.newBuilder()
-                        .uri(URI.create(url))
-                        .build();
-                response = client.send(request, HttpResponse.BodyHandlers.ofString());
-                limiter.acquire();
-            }
+            return findPlaceAsync(place).join();
+        } catch (CompletionException | CancellationException e) {
+            logger.error(e.getMessage(), e);
+            return null;
+        }
+    }
 
-            JsonNode jsonRoot = objectMapper.readTree(response.body());
+    public CompletableFuture<GeocodingBackend.Place> findPlaceAsync(String place) {
+        // completes with null if the place isn't found, and the place's name is null if it has none
+        String key = PlaceQueryCache.normalize(place);
+        PlaceQueryCache.Entry cached = places.get(key);
+        if (cached != null) {
+            logger.debug("Place query cache hit: {}", key);
+            return CompletableFuture.completedFuture(cached.isMiss() ? null
+                    : new GeocodingBackend.Place(cached.name(), cached.latitude(), cached.longitude()));
+        }
 
-            if (jsonRoot.isArray() && jsonRoot.size() > 0) {
-                JsonNode locationNode = jsonRoot.get(0);
-                double longitude = locationNode.path("lon").asDouble();
-                double latitude = locationNode.path("lat").asDouble();
-                String name = locationNode.path("name").asText();
-                logger.info(String.valueOf(longitude));
-                logger.info(String.valueOf(latitude));
-                return new Location(longitude, latitude);
+        return placesInFlight.submit(key, () -> CompletableFuture.supplyAsync(() -> lookUpPlace(key, place), lookups));
+    }
 
-            } else {
-                logger.warn("Empty location result for: {}", place);
-                return null;
+    private GeocodingBackend.Place lookUpPlace(String key, String place) {
+        boolean failed = false;
+        for (GeocodingBackend backend : backends) {
+            try {
+                GeocodingBackend.Place found = backend.findPlace(place);
+                if (found != null) {
+                    places.putFound(key, found.latitude(), found.longitude(), found.name());
+                    BotDatabase.saveGeocode(key, found.latitude(), found.longitude(), found.name());
+                    return found;
+                }
+            } catch (IOException e) {
+                logger.error("Oh damn, geocoding with {} failed: {}", backend.name(), e.getMessage());
+                failed = true;
             }
+        }
 
-        } catch (Exception e) {
-            logger.error("Oh damn, Caught error in Geolocator.");
-            logger.error(e.getMessage(), e);
-            return null;
+        if (!failed) {
+            places.putMiss(key);
         }
+        return null;
     }
 
+    public void close() {
+        // waits for the lookups already running
+        lookups.close();
+    }
 }
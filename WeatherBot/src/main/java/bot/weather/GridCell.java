@@ -0,0 +1,29 @@
+package bot.weather;
+
+public record GridCell(long latitudeIndex, long longitudeIndex, int precision) {
+
+    /*
+     A coordinate truncated to a fixed number of decimal places, used as a cache key
+     so that nearby requests share an entry. At 4 decimals (what met.no asks for)
+     a cell is about 11 m across; at 2 decimals it is about 1 km.
+     */
+
+    public static GridCell of(double latitude, double longitude, int precision) {
+        double scale = Math.pow(10, precision);
+        // casting truncates toward zero, as met.no does
+        return new GridCell((long) (latitude * scale), (long) (longitude * scale), precision);
+    }
+
+    public double latitude() {
+        return latitudeIndex / Math.pow(10, precision);
+    }
+
+    public double longitude() {
+        return longitudeIndex / Math.pow(10, precision);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("(%." + precision + "f, %." + precision + "f)", latitude(), longitude());
+    }
+}
@@ -0,0 +1,143 @@
+package bot.weather;
+
+public class KdTree {
+
+    /*
+     Nearest neighbour search over points on the globe.
+     Each point is stored as a unit vector, so the straight line distance between
+     two points orders them the same way as the great circle distance, and the
+     usual 3-d tree works without any special handling of the poles or the dateline.
+     The tree is implicit: each range of the arrays is split at its median.
+     */
+
+    private static final double EARTH_RADIUS_KM = 6371.0;
+
+    private final double[][] coords;
+    private final int[] ids;
+
+    public KdTree(double[] latitudes, double[] longitudes) {
+        int size = latitudes.length;
+        this.coords = new double[3][size];
+        this.ids = new int[size];
+        for (int i = 0; i < size; i++) {
+            double[] v = toVector(latitudes[i], longitudes[i]);
+            coords[0][i] = v[0];
+            coords[1][i] = v[1];
+            coords[2][i] = v[2];
+            ids[i] = i;
+        }
+        build(0, size, 0);
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    // index into the arrays given to the constructor, or -1 if the tree is empty
+    public int nearest(double latitude, double longitude) {
+        if (ids.length == 0) {
+            return -1;
+        }
+        double[] query = toVector(latitude, longitude);
+        double[] best = {Double.MAX_VALUE};
+        int[] bestIndex = {-1};
+        search(query, 0, ids.length, 0, best, bestIndex);
+        return ids[bestIndex[0]];
+    }
+
+    public static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        // haversine
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+                * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1.0, Math.sqrt(a)));
+    }
+
+    private static double[] toVector(double latitude, double longitude) {
+        double lat = Math.toRadians(latitude);
+        double lon = Math.toRadians(longitude);
+        return new double[] {Math.cos(lat) * Math.cos(lon), Math.cos(lat) * Math.sin(lon), Math.sin(lat)};
+    }
+
+    private void build(int lo, int hi, int depth) {
+        if (hi - lo <= 1) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, depth % 3);
+        build(lo, mid, depth + 1);
+        build(mid + 1, hi, depth + 1);
+    }
+
+    private void search(double[] query, int lo, int hi, int depth, double[] best, int[] bestIndex) {
+        if (lo >= hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        double dx = query[0] - coords[0][mid];
+        double dy = query[1] - coords[1][mid];
+        double dz = query[2] - coords[2][mid];
+        double distance = dx * dx + dy * dy + dz * dz;
+        if (distance < best[0]) {
+            best[0] = distance;
+            bestIndex[0] = mid;
+        }
+
+        int axis = depth % 3;
+        double diff = query[axis] - coords[axis][mid];
+        if (diff < 0) {
+            search(query, lo, mid, depth + 1, best, bestIndex);
+            if (diff * diff < best[0]) {
+                search(query, mid + 1, hi, depth + 1, best, bestIndex);
+            }
+        } else {
+            search(query, mid + 1, hi, depth + 1, best, bestIndex);
+            if (diff * diff < best[0]) {
+                search(query, lo, mid, depth + 1, best, bestIndex);
+            }
+        }
+    }
+
+    private void select(int lo, int hi, int k, int axis) {
+        // quickselect, leaving the k-th smallest on this axis at k
+        double[] values = coords[axis];
+        while (lo < hi) {
+            double pivot = values[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (values[i] < pivot) {
+                    i++;
+                }
+                while (values[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        for (double[] axis : coords) {
+            double t = axis[i];
+            axis[i] = axis[j];
+            axis[j] = t;
+        }
+        int t = ids[i];
+        ids[i] = ids[j];
+        ids[j] = t;
+    }
+}
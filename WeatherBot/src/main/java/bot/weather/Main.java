@@ -1,6 +1,7 @@
 package bot.weather;
 
 import org.telegram.telegrambots.longpolling.TelegramBotsLongPollingApplication;
+import org.telegram.telegrambots.longpolling.interfaces.LongPollingUpdateConsumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.io.IOException;
@@ -32,9 +33,64 @@ public class Main {
             return;
         }
 
+        Config config = new Config(properties);
+        Bot bot = new Bot(botToken, geolocatorToken, config);
+
+        // optionally run chats side by side, each chat still in order
+        LongPollingUpdateConsumer consumer = bot;
+        ChatOrderedDispatcher dispatcher = null;
+        if (config.getBoolean("updates.concurrent", false)) {
+            dispatcher = new ChatOrderedDispatcher(bot, config.getInt("updates.maxParallel", 16),
+                    config.getInt("updates.maxQueuedPerChat", 20), bot::sendSlowDown);
+            consumer = dispatcher;
+            logger.info("Processing updates concurrently.");
+        }
+
+        // updates pushed to us by telegram, or long polling for them
+        WebhookServer webhook = null;
+        if (config.getString("updates.mode", "polling").equalsIgnoreCase("webhook")) {
+            try {
+                webhook = new WebhookServer(consumer, config);
+            } catch (IOException | IllegalStateException e) {
+                logger.error("Could not start the webhook server: {}", e.getMessage());
+                return;
+            }
+        }
+
+        // stop taking updates, finish the ones in hand, close the bot's schedulers and cache file
+        // and send its replies, then release the database connections on exit
+        ChatOrderedDispatcher running = dispatcher;
+        WebhookServer listening = webhook;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (listening != null) {
+                listening.close();
+            }
+            if (running != null) {
+                running.close();
+            }
+            bot.close();
+            BotDatabase.close();
+        }));
+
+        if (webhook != null) {
+            webhook.start();
+            // without a public url the webhook is left as it is, e.g. when posting updates to it by hand
+            String webhookUrl = config.getString("webhook.url", null);
+            if (webhookUrl != null) {
+                bot.setWebhook(webhookUrl, config.getString("webhook.secret", null));
+            }
+            logger.info("The bot is now live, on a webhook.");
+            try {
+                Thread.currentThread().join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+
         // start the bot
         try (TelegramBotsLongPollingApplication botsApplication = new TelegramBotsLongPollingApplication()) {
-            botsApplication.registerBot(botToken, new Bot(botToken, geolocatorToken));
+            botsApplication.registerBot(botToken, consumer);
             logger.info("The bot is now live.");
             Thread.currentThread().join();
         } catch (Exception e) {
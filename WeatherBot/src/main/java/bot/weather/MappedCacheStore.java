@@ -0,0 +1,234 @@
+package bot.weather;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+public class MappedCacheStore implements AutoCloseable {
+
+    /*
+     An append-only file of cache entries keyed on grid cell, memory-mapped so that
+     writes are just copies into the page cache and survive the process restarting.
+     Each record is:
+       magic (int), kind (byte), cell (long, long, byte), keep until (epoch millis, long),
+       payload length (int), payload, CRC32 of everything from kind to the end of the payload (int)
+     The latest record for a kind and cell wins. Opening the file scans it once, and stops
+     at the first record that is cut short or fails its checksum, so a crash mid-write
+     only loses that write. When the file fills up, the live records are packed down to the start.
+     */
+
+    public static final byte FORECAST = 1;
+    public static final byte PLACE_NAME = 2;
+
+    public record Record(byte kind, GridCell cell, Instant keepUntil, ByteBuffer payload) {
+    }
+
+    private record Key(byte kind, GridCell cell) {
+    }
+
+    private static final int FILE_MAGIC = 0x57584331; // "WXC1"
+    private static final int RECORD_MAGIC = 0x52454331; // "REC1"
+    private static final int HEADER_SIZE = 8;
+    // magic, kind, cell, keep until, payload length ... crc
+    private static final int RECORD_OVERHEAD = 4 + 1 + 17 + 8 + 4 + 4;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    // where the latest record for each key starts
+    private final Map<Key, Integer> index;
+    private final Logger logger;
+    private int end;
+    private boolean closed;
+
+    private MappedCacheStore(FileChannel channel, MappedByteBuffer buffer) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.index = new LinkedHashMap<>();
+        this.logger = LoggerFactory.getLogger(MappedCacheStore.class);
+    }
+
+    public static MappedCacheStore open(Path path, int maxBytes) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedCacheStore store = new MappedCacheStore(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, maxBytes));
+            store.scan();
+            return store;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // the latest live record of the kind for each cell, oldest written first
+    public synchronized List<Record> load(byte kind) {
+        Instant now = Instant.now();
+        List<Record> records = new ArrayList<>();
+        for (Map.Entry<Key, Integer> entry : index.entrySet()) {
+            if (entry.getKey().kind() != kind) {
+                continue;
+            }
+            Record record = read(entry.getValue());
+            if (record != null && record.keepUntil().isAfter(now)) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    public synchronized void put(byte kind, GridCell cell, Instant keepUntil, byte[] payload) {
+        if (closed) {
+            // a late response after shutdown, not worth keeping
+            return;
+        }
+        int size = RECORD_OVERHEAD + payload.length;
+        if (end + size > buffer.capacity()) {
+            compact(size);
+            if (end + size > buffer.capacity()) {
+                logger.warn("Cache file full, not storing {} for {}", kind, cell);
+                return;
+            }
+        }
+
+        int start = end;
+        buffer.position(start + 4);
+        buffer.put(kind)
+                .putLong(cell.latitudeIndex())
+                .putLong(cell.longitudeIndex())
+                .put((byte) cell.precision())
+                .putLong(keepUntil.toEpochMilli())
+                .putInt(payload.length)
+                .put(payload);
+        buffer.putInt(checksum(start + 4, buffer.position() - start - 4));
+        end = buffer.position();
+        // the magic goes in last, so a half-written record is never taken for a whole one
+        buffer.putInt(start, RECORD_MAGIC);
+        clearAfterEnd();
+
+        Key key = new Key(kind, cell);
+        // move the key to the end, so load() keeps the order records were written in
+        index.remove(key);
+        index.put(key, start);
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    private void scan() {
+        if (buffer.getInt(0) != FILE_MAGIC) {
+            // new or unrecognised file, start afresh
+            buffer.putInt(0, FILE_MAGIC);
+            buffer.putInt(4, 0);
+            end = HEADER_SIZE;
+            return;
+        }
+
+        int position = HEADER_SIZE;
+        Record record;
+        while ((record = read(position)) != null) {
+            Key key = new Key(record.kind(), record.cell());
+            index.remove(key);
+            index.put(key, position);
+            position += RECORD_OVERHEAD + record.payload().remaining();
+        }
+        end = position;
+        clearAfterEnd();
+        logger.info("Opened cache file with {} entries, {} bytes used.", index.size(), end);
+    }
+
+    private Record read(int start) {
+        // null if there is no whole, intact record at start
+        if (start + RECORD_OVERHEAD > buffer.capacity() || buffer.getInt(start) != RECORD_MAGIC) {
+            return null;
+        }
+        int payloadLength = buffer.getInt(start + 4 + 1 + 17 + 8);
+        if (payloadLength < 0 || start + RECORD_OVERHEAD + payloadLength > buffer.capacity()) {
+            return null;
+        }
+        int checked = 1 + 17 + 8 + 4 + payloadLength;
+        if (buffer.getInt(start + 4 + checked) != checksum(start + 4, checked)) {
+            return null;
+        }
+
+        byte kind = buffer.get(start + 4);
+        GridCell cell = new GridCell(buffer.getLong(start + 5), buffer.getLong(start + 13), buffer.get(start + 21));
+        Instant keepUntil = Instant.ofEpochMilli(buffer.getLong(start + 22));
+        // copied out, as compacting moves records around underneath
+        byte[] payload = new byte[payloadLength];
+        buffer.get(start + 4 + 1 + 17 + 8 + 4, payload);
+        return new Record(kind, cell, keepUntil, ByteBuffer.wrap(payload));
+    }
+
+    private void compact(int needed) {
+        // copy out the live records, then write them back from the start
+        Instant now = Instant.now();
+        List<byte[]> live = new ArrayList<>();
+        long liveBytes = 0;
+        for (int start : index.values()) {
+            Record record = read(start);
+            if (record != null && record.keepUntil().isAfter(now)) {
+                byte[] copy = new byte[RECORD_OVERHEAD + record.payload().remaining()];
+                buffer.get(start, copy);
+                live.add(copy);
+                liveBytes += copy.length;
+            }
+        }
+        // still too full, so drop the longest unwritten ones
+        int dropped = 0;
+        while (dropped < live.size() && HEADER_SIZE + liveBytes + needed > buffer.capacity()) {
+            liveBytes -= live.get(dropped++).length;
+        }
+        live = live.subList(dropped, live.size());
+
+        index.clear();
+        end = HEADER_SIZE;
+        for (byte[] copy : live) {
+            buffer.put(end, copy);
+            Record record = read(end);
+            index.put(new Key(record.kind(), record.cell()), end);
+            end += copy.length;
+        }
+        clearAfterEnd();
+        buffer.force();
+        logger.info("Compacted cache file to {} entries, {} bytes.", index.size(), end);
+    }
+
+    private void clearAfterEnd() {
+        // so a scan stops here rather than reading an older record that was packed over
+        if (end + 4 <= buffer.capacity()) {
+            buffer.putInt(end, 0);
+        }
+    }
+
+    private int checksum(int start, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(start, length));
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        buffer.force();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+        }
+    }
+}
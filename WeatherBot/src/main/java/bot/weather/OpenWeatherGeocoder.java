@@ -0,0 +1,102 @@
+package bot.weather;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+
+public class OpenWeatherGeocoder implements GeocodingBackend {
+
+    /* The openweathermap geocoding api, allowed one request a second by default. */
+
+    private static final String DIRECT_URL = "https://api.openweathermap.org/geo/1.0/direct?q=%s&limit=%s&appid=%s";
+    private static final String REVERSE_URL = "https://api.openweathermap.org/geo/1.0/reverse?lat=%s&lon=%s&limit=%s&appid=%s";
+    private static final String API = "openweathermap";
+
+    private final String apiKey;
+    private final UpstreamScheduler upstream;
+    private final String limit;
+    private final ObjectMapper objectMapper;
+    private final Logger logger;
+
+    public OpenWeatherGeocoder(String apiKey, UpstreamScheduler upstream, Config config) {
+        this.apiKey = apiKey;
+        this.upstream = upstream;
+        upstream.register(API, config.getDouble("upstream.openweathermap.requestsPerSecond", 1.0),
+                config.getInt("upstream.openweathermap.burst", 1));
+        this.limit = "1";
+        this.objectMapper = new ObjectMapper();
+        this.logger = LoggerFactory.getLogger(OpenWeatherGeocoder.class);
+    }
+
+    @Override
+    public String name() {
+        return "openweathermap";
+    }
+
+    @Override
+    public String findName(double latitude, double longitude) throws IOException {
+        // reverse geocode
+        String lat = URLEncoder.encode(String.valueOf(latitude), StandardCharsets.UTF_8);
+        String lon = URLEncoder.encode(String.valueOf(longitude), StandardCharsets.UTF_8);
+
+        String url = String.format(REVERSE_URL, lat, lon, this.limit, this.apiKey);
+        logger.debug(url);
+
+        JsonNode jsonRoot = fetch(url);
+        if (jsonRoot.size() > 0) {
+            String name = jsonRoot.get(0).path("name").asText();
+            logger.info("Name = {}", name);
+            return name;
+        }
+        return null;
+    }
+
+    @Override
+    public Place findPlace(String place) throws IOException {
+        // geocode
+        String safePlace = URLEncoder.encode(place, StandardCharsets.UTF_8);
+        String url = String.format(DIRECT_URL, safePlace, this.limit, this.apiKey);
+        logger.debug(url);
+
+        JsonNode jsonRoot = fetch(url);
+        if (jsonRoot.size() > 0) {
+            JsonNode locationNode = jsonRoot.get(0);
+            double longitude = locationNode.path("lon").asDouble();
+            double latitude = locationNode.path("lat").asDouble();
+            String name = locationNode.path("name").asText();
+            logger.info("{} = ({}, {})", name, latitude, longitude);
+            return new Place(name, latitude, longitude);
+        }
+        logger.warn("Empty location result for: {}", place);
+        return null;
+    }
+
+    private JsonNode fetch(String url) throws IOException {
+        try {
+            // the interface is blocking, so wait here for our turn and the response
+            HttpRequest request = upstream.request(url).build();
+            HttpResponse<InputStream> response = upstream.submit(API, UpstreamScheduler.Priority.INTERACTIVE, request).get();
+
+            JsonNode jsonRoot = objectMapper.readTree(UpstreamClient.body(response));
+            if (!jsonRoot.isArray()) {
+                // an error object, e.g. a bad api key
+                throw new IOException("Unexpected geocoding response " + response.statusCode() + ": " + jsonRoot);
+            }
+            return jsonRoot;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package bot.weather;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+import org.telegram.telegrambots.meta.generics.TelegramClient;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class OutboundDispatcher implements AutoCloseable {
+
+    /*
+     Queues messages to Telegram and sends them with executeAsync, so a slow send
+     never holds up the update that asked for it.
+     Telegram allows about 30 messages a second in all and 1 a second per chat,
+     so there is a token bucket for each. Each chat gets one message in flight at a time,
+     which keeps a chat's messages in order.
+     Plain text messages that queue up for the same chat are merged into one
+     (keyboards and other markup are always sent on their own).
+     A 429 holds the chat back for Telegram's retry_after, then the message is tried again.
+     */
+
+    private static final int MAX_MESSAGE_LENGTH = 4096;
+    private static final long IDLE_POLL_MS = 50;
+
+    // text is set for plain messages that can be merged, message for everything else
+    private record Outgoing(long chatId, String text, SendMessage message, int attempts) {
+
+        private SendMessage build() {
+            return message != null ? message : SendMessage.builder().chatId(chatId).text(text).build();
+        }
+    }
+
+    private static final class ChatQueue {
+        private final ArrayDeque<Outgoing> pending = new ArrayDeque<>();
+        private double tokens;
+        private long refilledAt;
+        private long pausedUntil;
+        private boolean sending;
+    }
+
+    private final TelegramClient telegramClient;
+    private final double globalPerNano;
+    private final double globalBurst;
+    private final double chatPerNano;
+    private final int maxAttempts;
+    private final Map<Long, ChatQueue> chats;
+    // chats with something queued, taken in turn
+    private final ArrayDeque<Long> ready;
+    private final ScheduledExecutorService pump;
+    private final Logger logger;
+    private double globalTokens;
+    private long globalRefilledAt;
+    private boolean pumpScheduled;
+    // handed to the pump to send and not yet answered by telegram
+    private int inFlight;
+
+    public OutboundDispatcher(TelegramClient telegramClient, Config config) {
+        this.telegramClient = telegramClient;
+        double globalPerSecond = config.getDouble("outbound.globalPerSecond", 30);
+        this.globalPerNano = globalPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.globalBurst = Math.max(1, globalPerSecond);
+        this.chatPerNano = config.getDouble("outbound.perChatPerSecond", 1) / TimeUnit.SECONDS.toNanos(1);
+        this.maxAttempts = config.getInt("outbound.maxAttempts", 4);
+        this.chats = new HashMap<>();
+        this.ready = new ArrayDeque<>();
+        this.pump = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "telegram-outbound");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.logger = LoggerFactory.getLogger(OutboundDispatcher.class);
+        this.globalTokens = globalBurst;
+        this.globalRefilledAt = System.nanoTime();
+    }
+
+    public void send(long chatId, String text) {
+        enqueue(new Outgoing(chatId, text, null, 0));
+    }
+
+    public void send(long chatId, SendMessage message) {
+        enqueue(new Outgoing(chatId, null, message, 0));
+    }
+
+    public synchronized int queued() {
+        int queued = 0;
+        for (ChatQueue chat : chats.values()) {
+            queued += chat.pending.size();
+        }
+        return queued;
+    }
+
+    private synchronized boolean idle() {
+        return inFlight == 0 && queued() == 0;
+    }
+
+    private synchronized void enqueue(Outgoing outgoing) {
+        ChatQueue chat = chats.computeIfAbsent(outgoing.chatId(), id -> {
+            ChatQueue created = new ChatQueue();
+            created.tokens = 1;
+            created.refilledAt = System.nanoTime();
+            return created;
+        });
+        if (chat.pending.isEmpty() && !chat.sending) {
+            ready.add(outgoing.chatId());
+        }
+        chat.pending.add(outgoing);
+        schedulePump(0);
+    }
+
+    private void schedulePump(long delayMs) {
+        // called holding the lock. after close() there's nothing left to pump with
+        if (!pumpScheduled && !pump.isShutdown()) {
+            pumpScheduled = true;
+            pump.schedule(this::pump, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void pump() {
+        synchronized (this) {
+            pumpScheduled = false;
+            long now = System.nanoTime();
+            globalTokens = Math.min(globalBurst, globalTokens + (now - globalRefilledAt) * globalPerNano);
+            globalRefilledAt = now;
+
+            // one pass over the waiting chats, sending from each that is allowed to
+            int waiting = ready.size();
+            for (int i = 0; i < waiting && globalTokens >= 1; i++) {
+                long chatId = ready.poll();
+                ChatQueue chat = chats.get(chatId);
+                chat.tokens = Math.min(1, chat.tokens + (now - chat.refilledAt) * chatPerNano);
+                chat.refilledAt = now;
+                if (chat.tokens < 1 || now - chat.pausedUntil < 0) {
+                    ready.add(chatId);
+                    continue;
+                }
+
+                Outgoing outgoing = takeMerged(chat);
+                chat.tokens -= 1;
+                chat.sending = true;
+                inFlight++;
+                globalTokens -= 1;
+                // sent from the pump thread, but executeAsync doesn't wait for the reply
+                pump.execute(() -> deliver(outgoing));
+            }
+
+            if (!ready.isEmpty()) {
+                schedulePump(IDLE_POLL_MS);
+            }
+            // forget chats that have gone quiet
+            chats.values().removeIf(chat -> chat.pending.isEmpty() && !chat.sending
+                    && now - chat.refilledAt > TimeUnit.SECONDS.toNanos(60));
+        }
+    }
+
+    private Outgoing takeMerged(ChatQueue chat) {
+        // runs of plain text go out as one message, up to Telegram's length limit
+        Outgoing first = chat.pending.poll();
+        if (first.text() == null) {
+            return first;
+        }
+        StringBuilder text = new StringBuilder(first.text());
+        while (!chat.pending.isEmpty() && chat.pending.peek().text() != null
+                && text.length() + 2 + chat.pending.peek().text().length() <= MAX_MESSAGE_LENGTH) {
+            text.append("\n\n").append(chat.pending.poll().text());
+        }
+        return new Outgoing(first.chatId(), text.toString(), null, first.attempts());
+    }
+
+    private void deliver(Outgoing outgoing) {
+        try {
+            telegramClient.executeAsync(outgoing.build()).whenComplete((sent, error) -> {
+                if (error == null) {
+                    logger.info("Sent message in chat {}", outgoing.chatId());
+                    finished(outgoing, 0);
+                } else {
+                    failed(outgoing, error instanceof CompletionException && error.getCause() != null
+                            ? error.getCause() : error);
+                }
+            });
+        } catch (TelegramApiException e) {
+            failed(outgoing, e);
+        }
+    }
+
+    private void failed(Outgoing outgoing, Throwable error) {
+        if (error instanceof TelegramApiRequestException request && request.getErrorCode() != null
+                && request.getErrorCode() == 429 && outgoing.attempts() + 1 < maxAttempts) {
+            // too fast for Telegram, wait as long as it says and try again
+            Integer retryAfter = request.getParameters() != null ? request.getParameters().getRetryAfter() : null;
+            long waitSeconds = retryAfter != null ? retryAfter : 1;
+            logger.warn("Telegram asked chat {} to wait {}s", outgoing.chatId(), waitSeconds);
+            synchronized (this) {
+                chats.get(outgoing.chatId()).pending.addFirst(new Outgoing(outgoing.chatId(), outgoing.text(),
+                        outgoing.message(), outgoing.attempts() + 1));
+            }
+            finished(outgoing, TimeUnit.SECONDS.toNanos(waitSeconds));
+            return;
+        }
+        logger.error(error.getMessage(), error);
+        finished(outgoing, 0);
+    }
+
+    private synchronized void finished(Outgoing outgoing, long pauseNanos) {
+        ChatQueue chat = chats.get(outgoing.chatId());
+        chat.sending = false;
+        inFlight--;
+        if (pauseNanos > 0) {
+            chat.pausedUntil = System.nanoTime() + pauseNanos;
+        }
+        if (!chat.pending.isEmpty()) {
+            ready.add(outgoing.chatId());
+            schedulePump(0);
+        }
+    }
+
+    @Override
+    public void close() {
+        // give what's queued and what's already being sent a few seconds to go out
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!idle() && System.nanoTime() - deadline < 0) {
+            try {
+                Thread.sleep(IDLE_POLL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (!idle()) {
+            logger.warn("Closing with replies still unsent.");
+        }
+        pump.shutdown();
+    }
+}
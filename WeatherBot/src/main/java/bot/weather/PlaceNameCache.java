@@ -0,0 +1,66 @@
+package bot.weather;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class PlaceNameCache {
+
+    /*
+     Reverse geocoding results keyed on grid cell, so that coordinates close to
+     one already looked up resolve from memory. The precision is the number of
+     decimal places kept; 2 gives cells of roughly a kilometre.
+     A coordinate with no name (out at sea, say) is remembered too, as an empty string.
+     With a store, names are also kept on disk for a month and read back on startup.
+     */
+
+    private static final Duration RETENTION = Duration.ofDays(30);
+
+    private final int precision;
+    private final Map<GridCell, String> names;
+    private final MappedCacheStore store;
+
+    public PlaceNameCache(int precision, int maxSize, MappedCacheStore store) {
+        this.precision = precision;
+        this.names = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<GridCell, String> eldest) {
+                return size() > maxSize;
+            }
+        };
+        this.store = store;
+        if (store != null) {
+            for (MappedCacheStore.Record record : store.load(MappedCacheStore.PLACE_NAME)) {
+                // names stored at another precision don't line up with our cells
+                if (record.cell().precision() == precision) {
+                    names.put(record.cell(), StandardCharsets.UTF_8.decode(record.payload()).toString());
+                }
+            }
+        }
+    }
+
+    public GridCell cellOf(double latitude, double longitude) {
+        return GridCell.of(latitude, longitude, precision);
+    }
+
+    // null if never looked up, empty if looked up without finding a name
+    public synchronized String get(double latitude, double longitude) {
+        return names.get(cellOf(latitude, longitude));
+    }
+
+    public synchronized void put(double latitude, double longitude, String name) {
+        GridCell cell = cellOf(latitude, longitude);
+        String value = name != null ? name : "";
+        String previous = names.put(cell, value);
+        if (store != null && !value.equals(previous)) {
+            store.put(MappedCacheStore.PLACE_NAME, cell, Instant.now().plus(RETENTION),
+                    value.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    public synchronized int size() {
+        return names.size();
+    }
+}
@@ -0,0 +1,77 @@
+package bot.weather;
+
+import java.text.Normalizer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+public class PlaceQueryCache {
+
+    /*
+     Forward geocoding results keyed on the normalised /wx query, so "Oslo",
+     " oslo " and "ÓSLO" share one entry. Found places are kept until evicted,
+     least recently used first. Queries that found nothing are kept for a
+     short while only, so a typo doesn't go to the api on every retry.
+     */
+
+    public record Entry(Double latitude, Double longitude, String name, Instant expires) {
+
+        public boolean isMiss() {
+            return latitude == null || longitude == null;
+        }
+
+        public boolean isFresh(Instant now) {
+            return expires == null || now.isBefore(expires);
+        }
+    }
+
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern SPACES = Pattern.compile("\\s+");
+
+    private final Duration missTtl;
+    private final Map<String, Entry> entries;
+
+    public PlaceQueryCache(int maxSize, Duration missTtl) {
+        this.missTtl = missTtl;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public static String normalize(String query) {
+        // fold case, accents and runs of whitespace
+        String folded = MARKS.matcher(Normalizer.normalize(query, Normalizer.Form.NFD)).replaceAll("");
+        return SPACES.matcher(folded.toLowerCase(Locale.ROOT)).replaceAll(" ").trim();
+    }
+
+    // null if unknown or expired
+    public synchronized Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.isFresh(Instant.now())) {
+            entries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    public synchronized void putFound(String key, double latitude, double longitude, String name) {
+        entries.put(key, new Entry(latitude, longitude, name, null));
+    }
+
+    public synchronized void putMiss(String key) {
+        entries.put(key, new Entry(null, null, null, Instant.now().plus(missTtl)));
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
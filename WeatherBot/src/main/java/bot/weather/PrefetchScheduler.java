@@ -0,0 +1,128 @@
+package bot.weather;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class PrefetchScheduler implements AutoCloseable {
+
+    /*
+     Keeps the forecasts for the most asked-about grid cells warm.
+     Every lookup counts towards its cell's demand, which halves every halfLife,
+     so cells people have stopped asking about drop out on their own.
+     Every interval the busiest cells whose forecast is missing or due to expire
+     within lead are refreshed, using no more than rateShare of the upstream
+     request rate, so interactive /wx requests keep the rest of the budget.
+     */
+
+    private final WeatherService weatherService;
+    private final Map<GridCell, Double> demand;
+    private final int budget;
+    private final int maxCells;
+    private final int maxTracked;
+    private final double minDemand;
+    private final Duration interval;
+    private final Duration lead;
+    private final double decay;
+    private final ScheduledExecutorService executor;
+    private final Logger logger;
+
+    public PrefetchScheduler(WeatherService weatherService, Config config, double upstreamRate) {
+        this.weatherService = weatherService;
+        this.demand = new ConcurrentHashMap<>();
+        this.maxCells = config.getInt("prefetch.maxCells", 50);
+        this.maxTracked = config.getInt("prefetch.trackedCells", 5000);
+        this.minDemand = config.getDouble("prefetch.minDemand", 2.0);
+        this.interval = Duration.ofSeconds(config.getInt("prefetch.intervalSeconds", 30));
+        this.lead = Duration.ofSeconds(config.getInt("prefetch.leadSeconds", 60));
+        // requests each run may spend
+        double share = config.getDouble("prefetch.rateShare", 0.25);
+        this.budget = Math.max(1, (int) (upstreamRate * share * interval.toSeconds()));
+        Duration halfLife = Duration.ofMinutes(config.getInt("prefetch.halfLifeMinutes", 60));
+        this.decay = Math.pow(0.5, (double) interval.toMillis() / halfLife.toMillis());
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "forecast-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.logger = LoggerFactory.getLogger(PrefetchScheduler.class);
+    }
+
+    public void recordDemand(GridCell cell) {
+        demand.merge(cell, 1.0, Double::sum);
+    }
+
+    public void start() {
+        long millis = interval.toMillis();
+        executor.scheduleWithFixedDelay(this::tick, millis, millis, TimeUnit.MILLISECONDS);
+        logger.info("Prefetching forecasts for {} tracked cells.", demand.size());
+    }
+
+    public int tracked() {
+        return demand.size();
+    }
+
+    private void tick() {
+        try {
+            decay();
+            refreshPopular();
+        } catch (RuntimeException e) {
+            // keep the schedule going
+            logger.error(e.getMessage(), e);
+        }
+    }
+
+    private void decay() {
+        demand.replaceAll((cell, score) -> score * decay);
+        demand.values().removeIf(score -> score < 0.1);
+        if (demand.size() > maxTracked) {
+            // forget the quietest cells
+            List<Map.Entry<GridCell, Double>> quietest = demand.entrySet().stream()
+                    .sorted(Map.Entry.comparingByValue())
+                    .limit(demand.size() - maxTracked)
+                    .toList();
+            quietest.forEach(entry -> demand.remove(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    private void refreshPopular() {
+        Instant due = Instant.now().plus(lead);
+        List<GridCell> popular = demand.entrySet().stream()
+                .filter(entry -> entry.getValue() >= minDemand)
+                .sorted(Map.Entry.<GridCell, Double>comparingByValue(Comparator.reverseOrder()))
+                .limit(maxCells)
+                .map(Map.Entry::getKey)
+                .toList();
+
+        int refreshed = 0;
+        for (GridCell cell : popular) {
+            Instant expires = weatherService.cachedUntil(cell);
+            if (expires != null && expires.isAfter(due)) {
+                continue;
+            }
+            if (refreshed == budget) {
+                // out of budget, the rest wait for the next run
+                break;
+            }
+            // queued behind any interactive requests, so no need to wait for it here
+            weatherService.refresh(cell);
+            refreshed++;
+        }
+        if (refreshed > 0) {
+            logger.debug("Prefetched {} of {} popular forecasts.", refreshed, popular.size());
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,297 @@
+package bot.weather;
+
+import bot.weather.ConnectionPool.PooledConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+public class SchemaMigrations {
+
+    /*
+     Brings the database schema up to date, one numbered step at a time.
+     The version a database is at is kept in SQLite's PRAGMA user_version, which starts at 0.
+     Each step that is newer than that runs in its own transaction along with bumping
+     user_version, so a step either happens completely or not at all, and a failed
+     step is tried again on the next start.
+     Once a step has been released it is never changed, and fixes to it go in a new step at the end
+     of the list. A step that hasn't been released yet is corrected in place instead, since no
+     database can have run the earlier version of it.
+     */
+
+    private record Migration(int version, String description, List<String> statements) {
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(SchemaMigrations.class);
+
+    private static final List<Migration> MIGRATIONS = List.of(
+            // the tables as they were before there were migrations, so older databases pass straight through
+            new Migration(1, "create tables", List.of(
+                    """
+                        CREATE TABLE IF NOT EXISTS users (
+                            user_id        INTEGER PRIMARY KEY,
+                            chat_id        DOUBLE NOT NULL UNIQUE,
+                            username       TEXT,
+                            first_name     TEXT,
+                            last_name      TEXT,
+                            language_code  TEXT,
+                            chat_type      TEXT,
+                            first_contact  DATETIME DEFAULT CURRENT_TIMESTAMP,
+                            last_contact   DATETIME DEFAULT CURRENT_TIMESTAMP
+                        )
+                    """,
+                    """
+                        CREATE TABLE IF NOT EXISTS user_messages (
+                            message_id     INTEGER PRIMARY KEY,
+                            chat_id        INTEGER NOT NULL,
+                            user_message   TEXT,
+                            received_at    DATETIME DEFAULT CURRENT_TIMESTAMP,
+                            FOREIGN KEY (chat_id) REFERENCES users(chat_id)
+                        )
+                    """,
+                    """
+                        CREATE TABLE IF NOT EXISTS chat_status (
+                            chat_id LONG PRIMARY KEY,
+                            wx_requested BOOLEAN,
+                            info_requested BOOLEAN,
+                            update_time DATETIME DEFAULT CURRENT_TIMESTAMP,
+                            FOREIGN KEY (chat_id) REFERENCES users(chat_id)
+                        )
+                    """,
+                    """
+                        CREATE TABLE IF NOT EXISTS user_locations (
+                            location_id INTEGER PRIMARY KEY AUTOINCREMENT,
+                            chat_id LONG NOT NULL,
+                            latitude DOUBLE,
+                            longitude DOUBLE,
+                            place_name TEXT,
+                            save_time DATETIME DEFAULT CURRENT_TIMESTAMP,
+                            FOREIGN KEY (chat_id) REFERENCES users(chat_id)
+                        )
+                    """,
+                    """
+                        CREATE TABLE IF NOT EXISTS geocode_cache (
+                            query TEXT PRIMARY KEY,
+                            latitude DOUBLE NOT NULL,
+                            longitude DOUBLE NOT NULL,
+                            place_name TEXT,
+                            cached_at DATETIME DEFAULT CURRENT_TIMESTAMP
+                        )
+                    """)),
+
+            // chat ids are whole numbers, but DOUBLE gave users.chat_id REAL affinity and
+            // LONG gave the others NUMERIC, so rebuild them as INTEGER.
+            // chat_status.chat_id then becomes the rowid, so its lookups go straight to the row.
+            // telegram message ids only count up within a chat, so user_messages is keyed on both.
+            new Migration(2, "store chat ids as integers", List.of(
+                    """
+                        CREATE TABLE users_new (
+                            user_id        INTEGER PRIMARY KEY,
+                            chat_id        INTEGER NOT NULL UNIQUE,
+                            username       TEXT,
+                            first_name     TEXT,
+                            last_name      TEXT,
+                            language_code  TEXT,
+                            chat_type      TEXT,
+                            first_contact  DATETIME DEFAULT CURRENT_TIMESTAMP,
+                            last_contact   DATETIME DEFAULT CURRENT_TIMESTAMP
+                        )
+                    """,
+                    """
+                        INSERT INTO users_new(user_id, chat_id, username, first_name, last_name, language_code,
+                                              chat_type, first_contact, last_contact)
+                        SELECT user_id, CAST(chat_id AS INTEGER), username, first_name, last_name, language_code,
+                               chat_type, first_contact, last_contact
+                        FROM users
+                    """,
+                    "DROP TABLE users",
+                    "ALTER TABLE users_new RENAME TO users",
+                    """
+                        CREATE TABLE chat_status_new (
+                            chat_id INTEGER PRIMARY KEY,
+                            wx_requested BOOLEAN,
+                            info_requested BOOLEAN,
+                            update_time DATETIME DEFAULT CURRENT_TIMESTAMP,
+                            FOREIGN KEY (chat_id) REFERENCES users(chat_id)
+                        )
+                    """,
+                    """
+                        INSERT INTO chat_status_new(chat_id, wx_requested, info_requested, update_time)
+                        SELECT CAST(chat_id AS INTEGER), wx_requested, info_requested, update_time
+                        FROM chat_status
+                    """,
+                    "DROP TABLE chat_status",
+                    "ALTER TABLE chat_status_new RENAME TO chat_status",
+                    """
+                        CREATE TABLE user_locations_new (
+                            location_id INTEGER PRIMARY KEY AUTOINCREMENT,
+                            chat_id INTEGER NOT NULL,
+                            latitude DOUBLE,
+                            longitude DOUBLE,
+                            place_name TEXT,
+                            save_time DATETIME DEFAULT CURRENT_TIMESTAMP,
+                            FOREIGN KEY (chat_id) REFERENCES users(chat_id)
+                        )
+                    """,
+                    """
+                        INSERT INTO user_locations_new(location_id, chat_id, latitude, longitude, place_name, save_time)
+                        SELECT location_id, CAST(chat_id AS INTEGER), latitude, longitude, place_name, save_time
+                        FROM user_locations
+                    """,
+                    "DROP TABLE user_locations",
+                    "ALTER TABLE user_locations_new RENAME TO user_locations",
+                    """
+                        CREATE TABLE user_messages_new (
+                            message_id     INTEGER NOT NULL,
+                            chat_id        INTEGER NOT NULL,
+                            user_message   TEXT,
+                            received_at    DATETIME DEFAULT CURRENT_TIMESTAMP,
+                            PRIMARY KEY (chat_id, message_id),
+                            FOREIGN KEY (chat_id) REFERENCES users(chat_id)
+                        )
+                    """,
+                    """
+                        INSERT INTO user_messages_new(message_id, chat_id, user_message, received_at)
+                        SELECT message_id, CAST(chat_id AS INTEGER), user_message, received_at
+                        FROM user_messages
+                    """,
+                    "DROP TABLE user_messages",
+                    "ALTER TABLE user_messages_new RENAME TO user_messages")),
+
+            // every per-chat query filters on chat_id, and the location ones want the newest row,
+            // so location_id rides along in that index.
+            // user_messages needs none of its own, its (chat_id, message_id) key is the per-chat index.
+            // getGeocodes reads the most recent entries first.
+            new Migration(3, "index chat lookups", List.of(
+                    "CREATE INDEX IF NOT EXISTS user_locations_chat_id ON user_locations(chat_id, location_id)",
+                    "CREATE INDEX IF NOT EXISTS geocode_cache_cached_at ON geocode_cache(cached_at)",
+                    "ANALYZE")),
+
+            // each chat's latest location gets a row of its own, looked up and replaced by chat_id,
+            // while user_locations becomes a short history of earlier ones.
+            // existing chats start from their newest saved location, and histories are cut to the default depth.
+            new Migration(4, "keep the current location apart from the history", List.of(
+                    """
+                        CREATE TABLE user_current_location (
+                            chat_id INTEGER PRIMARY KEY,
+                            latitude DOUBLE NOT NULL,
+                            longitude DOUBLE NOT NULL,
+                            place_name TEXT,
+                            save_time DATETIME DEFAULT CURRENT_TIMESTAMP,
+                            FOREIGN KEY (chat_id) REFERENCES users(chat_id)
+                        )
+                    """,
+                    """
+                        INSERT INTO user_current_location(chat_id, latitude, longitude, place_name, save_time)
+                        SELECT chat_id, latitude, longitude, place_name, save_time
+                        FROM user_locations
+                        WHERE location_id IN (SELECT MAX(location_id) FROM user_locations GROUP BY chat_id)
+                          AND latitude IS NOT NULL AND longitude IS NOT NULL
+                    """,
+                    """
+                        DELETE FROM user_locations WHERE location_id IN (
+                            SELECT location_id FROM (
+                                SELECT location_id,
+                                       ROW_NUMBER() OVER (PARTITION BY chat_id ORDER BY location_id DESC) AS newest
+                                FROM user_locations)
+                            WHERE newest > %d)
+                    """.formatted(BotDatabase.DEFAULT_LOCATION_HISTORY))),
+
+            // running totals for /info, bumped as messages and weather requests are logged
+            // rather than counted from user_messages each time.
+            // places are counted per 0.01 degree cell (about a kilometre), stored as whole hundredths.
+            // existing chats start from their messages, and their saved locations count as weather requests.
+            new Migration(5, "keep per-chat statistics", List.of(
+                    """
+                        CREATE TABLE chat_stats (
+                            chat_id INTEGER PRIMARY KEY,
+                            message_count INTEGER NOT NULL DEFAULT 0,
+                            weather_requests INTEGER NOT NULL DEFAULT 0,
+                            first_contact DATETIME DEFAULT CURRENT_TIMESTAMP,
+                            last_contact DATETIME DEFAULT CURRENT_TIMESTAMP,
+                            FOREIGN KEY (chat_id) REFERENCES users(chat_id)
+                        )
+                    """,
+                    """
+                        CREATE TABLE chat_place_stats (
+                            chat_id INTEGER NOT NULL,
+                            latitude_key INTEGER NOT NULL,
+                            longitude_key INTEGER NOT NULL,
+                            place_name TEXT,
+                            uses INTEGER NOT NULL DEFAULT 0,
+                            PRIMARY KEY (chat_id, latitude_key, longitude_key),
+                            FOREIGN KEY (chat_id) REFERENCES users(chat_id)
+                        ) WITHOUT ROWID
+                    """,
+                    """
+                        INSERT INTO chat_stats(chat_id, message_count, first_contact, last_contact)
+                        SELECT chat_id, COUNT(*), MIN(received_at), MAX(received_at)
+                        FROM user_messages
+                        GROUP BY chat_id
+                    """,
+                    """
+                        INSERT INTO chat_place_stats(chat_id, latitude_key, longitude_key, place_name, uses)
+                        SELECT chat_id, CAST(ROUND(latitude * 100) AS INTEGER), CAST(ROUND(longitude * 100) AS INTEGER),
+                               MAX(place_name), COUNT(*)
+                        FROM user_locations
+                        WHERE latitude IS NOT NULL AND longitude IS NOT NULL
+                        GROUP BY 1, 2, 3
+                    """,
+                    // counted from the same locations as the places, so the two agree
+                    """
+                        INSERT INTO chat_stats(chat_id, weather_requests)
+                        SELECT chat_id, COUNT(*)
+                        FROM user_locations
+                        WHERE latitude IS NOT NULL AND longitude IS NOT NULL
+                        GROUP BY chat_id
+                        ON CONFLICT(chat_id) DO UPDATE SET weather_requests = excluded.weather_requests
+                    """))
+    );
+
+    public static int latestVersion() {
+        return MIGRATIONS.getLast().version();
+    }
+
+    public static void migrate(PooledConnection connection) throws SQLException {
+        int version = currentVersion(connection);
+        if (version > latestVersion()) {
+            logger.warn("Database schema is version {}, newer than this build knows about ({}).",
+                    version, latestVersion());
+            return;
+        }
+
+        Connection jdbc = connection.connection();
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version() <= version) {
+                continue;
+            }
+            jdbc.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                for (String sql : migration.statements()) {
+                    statement.execute(sql);
+                }
+                // PRAGMA doesn't take parameters, but the version is our own number
+                statement.execute("PRAGMA user_version = " + migration.version());
+                jdbc.commit();
+            } catch (SQLException e) {
+                jdbc.rollback();
+                throw new SQLException("Database migration %d (%s) failed: %s"
+                        .formatted(migration.version(), migration.description(), e.getMessage()), e);
+            } finally {
+                jdbc.setAutoCommit(true);
+            }
+            version = migration.version();
+            logger.info("Migrated database schema to version {}: {}.", version, migration.description());
+        }
+    }
+
+    private static int currentVersion(PooledConnection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("PRAGMA user_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package bot.weather;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+public class SingleFlight<K, V> {
+
+    /*
+     Makes concurrent callers asking for the same key share one call.
+     The first caller starts it, and everyone who asks while it is running
+     waits on the same result, or the same failure.
+     Each caller gets its own copy of the shared future, so one caller cancelling
+     or timing out doesn't cancel the call for the others.
+     Once the call finishes the key is forgotten, and the next caller starts afresh.
+     */
+
+    private final String name;
+    private final Map<K, CompletableFuture<V>> inFlight;
+    private final Logger logger;
+
+    public SingleFlight(String name) {
+        this.name = name;
+        this.inFlight = new ConcurrentHashMap<>();
+        this.logger = LoggerFactory.getLogger(SingleFlight.class);
+    }
+
+    public CompletableFuture<V> submit(K key, Supplier<CompletableFuture<V>> call) {
+        CompletableFuture<V> shared = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, shared);
+        if (existing != null) {
+            logger.debug("Joined in-flight {} request for {}", name, key);
+            return existing.copy();
+        }
+
+        CompletableFuture<V> result;
+        try {
+            result = call.get();
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        result.whenComplete((value, error) -> {
+            // forget the key first, so late callers start a fresh call
+            inFlight.remove(key, shared);
+            if (error != null) {
+                shared.completeExceptionally(error);
+            } else {
+                shared.complete(value);
+            }
+        });
+        return shared.copy();
+    }
+}
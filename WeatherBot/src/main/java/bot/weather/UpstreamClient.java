@@ -0,0 +1,95 @@
+package bot.weather;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPInputStream;
+
+public class UpstreamClient {
+
+    /*
+     The one HttpClient used for every call out to met.no and openweathermap.
+     Sharing it keeps connections (and their TLS sessions) alive between calls,
+     and lets HTTP/2 multiplex requests to the same host.
+
+     Optional config.properties keys:
+     http.connectTimeoutSeconds=5
+     http.requestTimeoutSeconds=10
+     http.connectionPoolSize=16
+     http.keepAliveSeconds=60
+     */
+
+    private final HttpClient client;
+    private final Duration requestTimeout;
+    private final Logger logger;
+
+    public UpstreamClient(Config config) {
+        this.logger = LoggerFactory.getLogger(UpstreamClient.class);
+
+        int connectTimeout = config.getInt("http.connectTimeoutSeconds", 5);
+        int requestTimeout = config.getInt("http.requestTimeoutSeconds", 10);
+        int poolSize = config.getInt("http.connectionPoolSize", 16);
+        int keepAlive = config.getInt("http.keepAliveSeconds", 60);
+
+        // the jdk client only reads its pool settings from system properties,
+        // and only before the first client is built
+        setIfAbsent("jdk.httpclient.connectionPoolSize", poolSize);
+        setIfAbsent("jdk.httpclient.keepalive.timeout", keepAlive);
+        setIfAbsent("jdk.httpclient.keepalive.timeout.h2", keepAlive);
+
+        this.requestTimeout = Duration.ofSeconds(requestTimeout);
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofSeconds(connectTimeout))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+
+        logger.info("Upstream client: connect timeout {}s, request timeout {}s, pool of {} connections.",
+                connectTimeout, requestTimeout, poolSize);
+    }
+
+    public HttpRequest.Builder request(String url) {
+        return HttpRequest.newBuilder()
+                .uri(URI.create(url))
+                .timeout(requestTimeout)
+                .header("Accept-Encoding", "gzip");
+    }
+
+    public HttpResponse<InputStream> send(HttpRequest request) throws IOException, InterruptedException {
+        return client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+    }
+
+    public CompletableFuture<HttpResponse<InputStream>> sendAsync(HttpRequest request) {
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream());
+    }
+
+    public static InputStream body(HttpResponse<InputStream> response) throws IOException {
+        // the jdk client doesn't decompress by itself
+        boolean gzipped = response.headers().firstValue("Content-Encoding")
+                .map(encoding -> encoding.equalsIgnoreCase("gzip"))
+                .orElse(false);
+        return gzipped ? new GZIPInputStream(response.body()) : response.body();
+    }
+
+    public static void discard(HttpResponse<InputStream> response) {
+        // an unread body holds on to its connection
+        try (InputStream in = response.body()) {
+            in.transferTo(OutputStream.nullOutputStream());
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void setIfAbsent(String key, int value) {
+        if (System.getProperty(key) == null) {
+            System.setProperty(key, String.valueOf(value));
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package bot.weather;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class UpstreamScheduler implements AutoCloseable {
+
+    /*
+     Sends requests to the upstream apis without going over each api's rate limit.
+     Every api has its own token bucket and its own queue. A request is sent as soon as
+     there is a token for it; otherwise it waits its turn, interactive requests first,
+     then alerts, then prefetching, in the order they came within each class.
+     Callers get a CompletableFuture straight away, so no thread sits waiting for a token;
+     one timer thread wakes a queue up when its next token is due.
+     A background request still waiting can be promoted, when a user ends up waiting on it too,
+     so they don't queue behind the prefetching.
+     Queue depths and wait times are kept per api and priority, and logged every few minutes.
+
+     It also keeps a struggling api from dragging the bot down with it:
+     - every request has a deadline, covering its time in the queue and on the wire,
+       after which its future fails with a TimeoutException
+     - a 429 or 503 pauses the api for its Retry-After, and halves its rate,
+       which then creeps back up with each success
+     - after failureThreshold failures in a row (errors, timeouts, 5xx) the api's circuit
+       opens, and requests fail straight away for the cooldown; then one request
+       is let through to try it, closing the circuit again if it works
+     */
+
+    public enum Priority {
+        INTERACTIVE, ALERTS, PREFETCH
+    }
+
+    public record Stats(String api, Priority priority, int queued, long sent, double averageWaitMs, double maxWaitMs) {
+    }
+
+    private record Pending(Priority priority, long sequence, long queuedAt, HttpRequest request,
+                           CompletableFuture<HttpResponse<InputStream>> future) {
+    }
+
+    private static final long STATS_INTERVAL_MINUTES = 5;
+    // used when a 429 or 503 doesn't say how long to wait
+    private static final Duration DEFAULT_RETRY_AFTER = Duration.ofSeconds(5);
+
+    private final class Bucket {
+        private final String api;
+        private final double maxRatePerNano;
+        private final double capacity;
+        private final PriorityQueue<Pending> queue;
+        private final int[] queued = new int[Priority.values().length];
+        private final long[] sent = new long[Priority.values().length];
+        private final long[] totalWait = new long[Priority.values().length];
+        private final long[] maxWait = new long[Priority.values().length];
+        private double ratePerNano;
+        private double tokens;
+        private long refilledAt;
+        private boolean wakeScheduled;
+        private long pausedUntil;
+        private int failures;
+        // 0 while the circuit is closed
+        private long openUntil;
+        private boolean probing;
+
+        private Bucket(String api, double ratePerSecond, int burst) {
+            this.api = api;
+            this.maxRatePerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.ratePerNano = maxRatePerNano;
+            this.capacity = Math.max(1, burst);
+            this.queue = new PriorityQueue<>(Comparator.comparing(Pending::priority)
+                    .thenComparingLong(Pending::sequence));
+            this.tokens = capacity;
+            this.refilledAt = System.nanoTime();
+        }
+
+        private boolean allow(long now) {
+            if (openUntil == 0) {
+                return true;
+            }
+            if (now - openUntil < 0 || probing) {
+                return false;
+            }
+            // cooled down, try one request
+            probing = true;
+            return true;
+        }
+    }
+
+    private final UpstreamClient client;
+    private final Duration interactiveDeadline;
+    private final Duration backgroundDeadline;
+    private final int failureThreshold;
+    private final Duration cooldown;
+    private final Map<String, Bucket> buckets;
+    private final AtomicLong sequence;
+    private final ScheduledExecutorService timer;
+    private final Logger logger;
+    private volatile boolean closed;
+
+    public UpstreamScheduler(UpstreamClient client, Config config) {
+        this.client = client;
+        this.interactiveDeadline = Duration.ofSeconds(config.getInt("upstream.interactiveDeadlineSeconds", 8));
+        this.backgroundDeadline = Duration.ofSeconds(config.getInt("upstream.backgroundDeadlineSeconds", 60));
+        this.failureThreshold = config.getInt("upstream.failureThreshold", 5);
+        this.cooldown = Duration.ofSeconds(config.getInt("upstream.cooldownSeconds", 30));
+        this.buckets = new ConcurrentHashMap<>();
+        this.sequence = new AtomicLong();
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "upstream-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.logger = LoggerFactory.getLogger(UpstreamScheduler.class);
+        timer.scheduleAtFixedRate(this::logStats, STATS_INTERVAL_MINUTES, STATS_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    // the first registration of an api sets its rate
+    public void register(String api, double ratePerSecond, int burst) {
+        buckets.computeIfAbsent(api, name -> {
+            logger.info("Upstream {}: {} requests a second, bursts of {}.", name, ratePerSecond, burst);
+            return new Bucket(name, ratePerSecond, burst);
+        });
+    }
+
+    // the configured rate, before any slowing down
+    public double rate(String api) {
+        return bucket(api).maxRatePerNano * TimeUnit.SECONDS.toNanos(1);
+    }
+
+    public HttpRequest.Builder request(String url) {
+        return client.request(url);
+    }
+
+    public CompletableFuture<HttpResponse<InputStream>> submit(String api, Priority priority, HttpRequest request) {
+        Bucket bucket = bucket(api);
+        Duration deadline = priority == Priority.INTERACTIVE ? interactiveDeadline : backgroundDeadline;
+        CompletableFuture<HttpResponse<InputStream>> future = new CompletableFuture<HttpResponse<InputStream>>()
+                .orTimeout(deadline.toMillis(), TimeUnit.MILLISECONDS);
+        synchronized (bucket) {
+            // checked holding the lock, so close() either sees this request or it sees closed
+            if (closed) {
+                return CompletableFuture.failedFuture(new IOException("Upstream scheduler is closed"));
+            }
+            long now = System.nanoTime();
+            if (bucket.openUntil != 0 && (now - bucket.openUntil < 0 || bucket.probing)) {
+                // don't make them wait on an api that isn't answering
+                return CompletableFuture.failedFuture(new IOException(api + " is unavailable, circuit open"));
+            }
+            bucket.queue.add(new Pending(priority, sequence.incrementAndGet(), System.nanoTime(), request, future));
+            bucket.queued[priority.ordinal()]++;
+        }
+        drain(bucket);
+        return future;
+    }
+
+    // moves a queued request up to interactive, with the interactive deadline from now on.
+    // false if it has already gone out, or already was interactive
+    public boolean promote(String api, CompletableFuture<HttpResponse<InputStream>> future) {
+        Bucket bucket = bucket(api);
+        synchronized (bucket) {
+            Pending found = null;
+            for (Pending pending : bucket.queue) {
+                if (pending.future() == future) {
+                    found = pending;
+                    break;
+                }
+            }
+            if (found == null || found.priority() == Priority.INTERACTIVE) {
+                return false;
+            }
+            bucket.queue.remove(found);
+            bucket.queued[found.priority().ordinal()]--;
+            // keeps its place in the order it came, now among the interactive requests
+            bucket.queue.add(new Pending(Priority.INTERACTIVE, found.sequence(), found.queuedAt(), found.request(),
+                    found.future()));
+            bucket.queued[Priority.INTERACTIVE.ordinal()]++;
+        }
+        future.orTimeout(interactiveDeadline.toMillis(), TimeUnit.MILLISECONDS);
+        drain(bucket);
+        return true;
+    }
+
+    public List<Stats> stats() {
+        List<Stats> stats = new ArrayList<>();
+        for (Bucket bucket : buckets.values()) {
+            synchronized (bucket) {
+                for (Priority priority : Priority.values()) {
+                    int i = priority.ordinal();
+                    double average = bucket.sent[i] == 0 ? 0 : bucket.totalWait[i] / 1e6 / bucket.sent[i];
+                    stats.add(new Stats(bucket.api, priority, bucket.queued[i], bucket.sent[i], average,
+                            bucket.maxWait[i] / 1e6));
+                }
+            }
+        }
+        return stats;
+    }
+
+    private Bucket bucket(String api) {
+        Bucket bucket = buckets.get(api);
+        if (bucket == null) {
+            throw new IllegalArgumentException("Unknown upstream api " + api);
+        }
+        return bucket;
+    }
+
+    private void drain(Bucket bucket) {
+        List<Pending> ready = new ArrayList<>();
+        List<Pending> refused = new ArrayList<>();
+        synchronized (bucket) {
+            long now = System.nanoTime();
+            bucket.tokens = Math.min(bucket.capacity, bucket.tokens + (now - bucket.refilledAt) * bucket.ratePerNano);
+            bucket.refilledAt = now;
+
+            boolean paused = now - bucket.pausedUntil < 0;
+            while (!paused && !bucket.queue.isEmpty() && bucket.tokens >= 1) {
+                Pending pending = bucket.queue.poll();
+                int i = pending.priority().ordinal();
+                bucket.queued[i]--;
+                if (pending.future().isDone()) {
+                    // cancelled or past its deadline while it waited, don't spend a token on it
+                    continue;
+                }
+                if (!bucket.allow(now)) {
+                    refused.add(pending);
+                    continue;
+                }
+                bucket.tokens -= 1;
+                long waited = now - pending.queuedAt();
+                bucket.sent[i]++;
+                bucket.totalWait[i] += waited;
+                bucket.maxWait[i] = Math.max(bucket.maxWait[i], waited);
+                ready.add(pending);
+            }
+
+            if (!bucket.queue.isEmpty() && !bucket.wakeScheduled) {
+                // come back when the next token is due, or the pause is over
+                long delay = (long) Math.ceil((1 - bucket.tokens) / bucket.ratePerNano);
+                if (paused) {
+                    delay = Math.max(delay, bucket.pausedUntil - now);
+                }
+                try {
+                    timer.schedule(() -> wake(bucket), Math.max(0, delay), TimeUnit.NANOSECONDS);
+                    bucket.wakeScheduled = true;
+                } catch (RejectedExecutionException e) {
+                    // closing, which fails what's left in the queue once it has the lock
+                    logger.debug("Not waking upstream {}, the scheduler is closed.", bucket.api);
+                }
+            }
+        }
+
+        for (Pending pending : refused) {
+            pending.future().completeExceptionally(new IOException(bucket.api + " is unavailable, circuit open"));
+        }
+        // sent outside the lock, the client hands the response back on its own threads
+        for (Pending pending : ready) {
+            client.sendAsync(pending.request()).whenComplete((response, error) -> {
+                if (error != null) {
+                    recordFailure(bucket);
+                    pending.future().completeExceptionally(error);
+                    return;
+                }
+                recordResponse(bucket, response);
+                if (!pending.future().complete(response)) {
+                    // nobody wants it any more
+                    UpstreamClient.discard(response);
+                }
+            });
+        }
+    }
+
+    private void recordResponse(Bucket bucket, HttpResponse<?> response) {
+        int status = response.statusCode();
+        if (status == 429 || status == 503) {
+            // told to back off, so pause for as long as they asked and slow down after
+            Duration retryAfter = response.headers().firstValue("Retry-After")
+                    .map(UpstreamScheduler::parseRetryAfter)
+                    .orElse(DEFAULT_RETRY_AFTER);
+            synchronized (bucket) {
+                bucket.pausedUntil = System.nanoTime() + retryAfter.toNanos();
+                bucket.ratePerNano = Math.max(bucket.maxRatePerNano / 8, bucket.ratePerNano / 2);
+            }
+            logger.warn("Upstream {} answered {}, pausing for {}s and slowing to {} requests a second.",
+                    bucket.api, status, retryAfter.toSeconds(),
+                    String.format("%.2f", bucket.ratePerNano * TimeUnit.SECONDS.toNanos(1)));
+        }
+        if (status >= 500) {
+            recordFailure(bucket);
+            return;
+        }
+
+        synchronized (bucket) {
+            if (bucket.openUntil != 0) {
+                logger.info("Upstream {} is answering again, closing circuit.", bucket.api);
+            }
+            bucket.failures = 0;
+            bucket.openUntil = 0;
+            bucket.probing = false;
+            if (status != 429) {
+                // speed back up a tenth of the way at a time
+                bucket.ratePerNano = Math.min(bucket.maxRatePerNano, bucket.ratePerNano + bucket.maxRatePerNano / 10);
+            }
+        }
+    }
+
+    private void recordFailure(Bucket bucket) {
+        synchronized (bucket) {
+            bucket.failures++;
+            if (bucket.probing || bucket.failures >= failureThreshold) {
+                bucket.openUntil = System.nanoTime() + cooldown.toNanos();
+                // nanoTime can be zero, which means closed
+                if (bucket.openUntil == 0) {
+                    bucket.openUntil = 1;
+                }
+                bucket.probing = false;
+                logger.warn("Upstream {} failed {} times in a row, opening circuit for {}s.",
+                        bucket.api, bucket.failures, cooldown.toSeconds());
+            }
+        }
+    }
+
+    private static Duration parseRetryAfter(String value) {
+        // either a number of seconds or an http date
+        try {
+            return Duration.ofSeconds(Math.max(0, Long.parseLong(value.trim())));
+        } catch (NumberFormatException e) {
+            try {
+                Instant until = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+                Duration wait = Duration.between(Instant.now(), until);
+                return wait.isNegative() ? Duration.ZERO : wait;
+            } catch (DateTimeParseException ignored) {
+                return DEFAULT_RETRY_AFTER;
+            }
+        }
+    }
+
+    private void wake(Bucket bucket) {
+        synchronized (bucket) {
+            bucket.wakeScheduled = false;
+        }
+        drain(bucket);
+    }
+
+    private void logStats() {
+        for (Stats stats : stats()) {
+            if (stats.sent() > 0 || stats.queued() > 0) {
+                logger.info("Upstream {} {}: {} queued, {} sent, waited {} ms on average, {} ms at most.",
+                        stats.api(), stats.priority(), stats.queued(), stats.sent(),
+                        String.format("%.1f", stats.averageWaitMs()), String.format("%.1f", stats.maxWaitMs()));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        timer.shutdownNow();
+        // nothing will wake the queues again, so fail what's waiting rather than leave it to time out
+        for (Bucket bucket : buckets.values()) {
+            List<Pending> abandoned = new ArrayList<>();
+            synchronized (bucket) {
+                abandoned.addAll(bucket.queue);
+                bucket.queue.clear();
+                Arrays.fill(bucket.queued, 0);
+            }
+            for (Pending pending : abandoned) {
+                pending.future().completeExceptionally(new IOException("Upstream scheduler is closed"));
+            }
+        }
+    }
+}
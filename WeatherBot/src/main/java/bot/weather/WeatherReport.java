@@ -0,0 +1,121 @@
+package bot.weather;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Locale;
+
+public class WeatherReport {
+
+    /* Utility class turns a shared ForecastSeries into the text sent to a chat. */
+
+    private static final DateTimeFormatter HOUR_FORMAT = DateTimeFormatter.ofPattern("EEE HH:mm", Locale.ENGLISH);
+    private static final DateTimeFormatter DAY_FORMAT = DateTimeFormatter.ofPattern("EEE d MMM", Locale.ENGLISH);
+
+    public static String current(ForecastSeries forecast, Instant now) {
+        if (forecast == null) {
+            return "Problem accessing weather data.";
+        }
+        if (forecast.isEmpty()) {
+            return "Weather data unavailable.";
+        }
+
+        int row = forecast.rowAt(now);
+        StringBuilder sb = new StringBuilder();
+        appendLine(sb, "Temperature: %.2f°C", forecast.temperature(row));
+        appendLine(sb, "Wind Speed: %.2f m/s", forecast.windSpeed(row));
+        appendLine(sb, "Humidity: %.2f%%", forecast.humidity(row));
+        appendLine(sb, "Pressure: %.2f hPa", forecast.pressure(row));
+        appendLine(sb, "Cloud Coverage: %.2f%%", forecast.cloudCover(row));
+        appendLine(sb, "Precipitation: %.2f mm", forecast.precipitation1h(row));
+        return sb.toString().stripTrailing();
+    }
+
+    public static String hourly(ForecastSummary summary, Instant now, int hours) {
+        String problem = problem(summary);
+        if (problem != null) {
+            return problem;
+        }
+
+        ForecastSeries forecast = summary.forecast();
+        int from = forecast.rowAt(now);
+        Instant end = forecast.time(from).plus(Duration.ofHours(hours));
+        DateTimeFormatter format = HOUR_FORMAT.withZone(summary.offset());
+
+        StringBuilder sb = new StringBuilder();
+        for (int row = from; row < forecast.size() && forecast.time(row).isBefore(end); row++) {
+            sb.append(format.format(forecast.time(row))).append(": ")
+                    .append(describe(forecast.temperature(row), forecast.temperature(row),
+                            summary.precipitation(row), forecast.windSpeed(row)))
+                    .append("\n");
+        }
+
+        ForecastSummary.Aggregate total = summary.aggregate(from, end);
+        if (total == null) {
+            return "No forecast that far ahead.";
+        }
+        sb.append(String.format(Locale.ROOT, "Next %dh: ", hours))
+                .append(describe(total.minTemperature(), total.maxTemperature(),
+                        total.precipitation(), total.maxWindSpeed()));
+        return sb.toString();
+    }
+
+    public static String daily(ForecastSummary summary, Instant now, int days) {
+        String problem = problem(summary);
+        if (problem != null) {
+            return problem;
+        }
+
+        List<ForecastSummary.Aggregate> upcoming = summary.daysFrom(now, days);
+        if (upcoming.isEmpty()) {
+            return "No forecast that far ahead.";
+        }
+        DateTimeFormatter format = DAY_FORMAT.withZone(summary.offset());
+
+        StringBuilder sb = new StringBuilder();
+        for (ForecastSummary.Aggregate day : upcoming) {
+            sb.append(format.format(day.start())).append(": ")
+                    .append(describe(day.minTemperature(), day.maxTemperature(),
+                            day.precipitation(), day.maxWindSpeed()))
+                    .append("\n");
+        }
+        return sb.toString().stripTrailing();
+    }
+
+    private static String problem(ForecastSummary summary) {
+        if (summary == null) {
+            return "Problem accessing weather data.";
+        }
+        if (summary.forecast().isEmpty()) {
+            return "Weather data unavailable.";
+        }
+        return null;
+    }
+
+    private static String describe(float minTemperature, float maxTemperature, float precipitation, float windSpeed) {
+        // one line per hour or day, again leaving out what met.no didn't send
+        StringBuilder sb = new StringBuilder();
+        if (!Float.isNaN(minTemperature)) {
+            if (minTemperature == maxTemperature) {
+                sb.append(String.format(Locale.ROOT, "%.1f°C", minTemperature));
+            } else {
+                sb.append(String.format(Locale.ROOT, "%.1f to %.1f°C", minTemperature, maxTemperature));
+            }
+        }
+        if (!Float.isNaN(precipitation)) {
+            sb.append(sb.isEmpty() ? "" : ", ").append(String.format(Locale.ROOT, "%.1f mm", precipitation));
+        }
+        if (!Float.isNaN(windSpeed)) {
+            sb.append(sb.isEmpty() ? "" : ", ").append(String.format(Locale.ROOT, "wind %.1f m/s", windSpeed));
+        }
+        return sb.isEmpty() ? "no data" : sb.toString();
+    }
+
+    private static void appendLine(StringBuilder sb, String format, float value) {
+        // leave out anything met.no didn't send
+        if (!Float.isNaN(value)) {
+            sb.append(String.format(format, value)).append("\n");
+        }
+    }
+}
@@ -1,77 +1,229 @@
 package bot.weather;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.net.URI;
-import java.net.http.HttpClient;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import com.google.common.util.concurrent.RateLimiter;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class WeatherService {
     private static final String USER_AGENT = "ATelegramBot/0.2 github.com/e-s-l";
     private static final String API_URL = "https://api.met.no/weatherapi/locationforecast/2.0/compact?lat=%s&lon=%s";
-
-    private final ObjectMapper objectMapper;
+    private static final String API = "met.no";
+    // met.no asks for no more than 4 decimals, so requests are keyed on that grid
+    private static final int GRID_PRECISION = 4;
+    // used when met.no doesn't send an Expires header
+    private static final Duration DEFAULT_TTL = Duration.ofMinutes(10);
+
+    private final UpstreamScheduler upstream;
+    private final ForecastCache cache;
+    private final SingleFlight<GridCell, ForecastCache.Entry> inFlight;
+    // requests for prefetches and refreshes, in case a user comes to wait on one
+    private final Map<GridCell, CompletableFuture<HttpResponse<InputStream>>> backgroundRequests;
+    private final ForecastParser parser;
+    private final Duration staleWhileRevalidate;
     private final Logger logger;
-    private static final RateLimiter limiter = RateLimiter.create(1.0);
-
-    public WeatherService() {
-        objectMapper = new ObjectMapper();
+    private PrefetchScheduler prefetcher;
+
+    public WeatherService(UpstreamScheduler upstream, Config config, MappedCacheStore store) {
+        this.upstream = upstream;
+        // concurrently, don't overload the api, thanks joshua
+        upstream.register(API, config.getDouble("upstream.metno.requestsPerSecond", 1.0),
+                config.getInt("upstream.metno.burst", 1));
+        this.cache = new ForecastCache(config.getInt("forecast.cacheSize", 1000), store);
+        this.inFlight = new SingleFlight<>("forecast");
+        this.backgroundRequests = new ConcurrentHashMap<>();
+        this.staleWhileRevalidate = Duration.ofSeconds(config.getInt("forecast.staleWhileRevalidateSeconds", 120));
+        parser = new ForecastParser();
         logger = LoggerFactory.getLogger(WeatherService.class);
     }
 
-    public String getWeather(double latitude, double longitude) {
-        try {
-            String url = String.format(API_URL, latitude, longitude);
-            HttpResponse<String> response;
-
-            try (HttpClient client = HttpClient.newHttpClient()) {
-                // concurrently, don't overload the api, thanks joshua
-                limiter.acquire();
-
-                HttpRequest request = HttpRequest.newBuilder()
-                        .uri(URI.create(url))
-                        .header("User-Agent", USER_AGENT)
-                        .build();
-                response = client.send(request, HttpResponse.BodyHandlers.ofString());
-
-                if (response.statusCode() != 200) {
-                    logger.warn("bad response: {}", response.statusCode());
-                    throw new Exception();
-                }
-
-            } catch (Exception e) {
-                logger.warn("Exception thrown while polling weather data api.");
-                return "Problem accessing weather data.";
-            }
+    // each completes when met.no answers, or with an old forecast or an apology if it doesn't
+    public CompletableFuture<String> getWeatherAsync(double latitude, double longitude) {
+        return getEntry(latitude, longitude).thenApply(entry -> {
+            Instant now = Instant.now();
+            return WeatherReport.current(entry != null ? entry.forecast() : null, now) + staleNote(entry, now);
+        });
+    }
 
-            JsonNode jsonNode = objectMapper.readTree(response.body());
+    public CompletableFuture<String> getHourlyForecastAsync(double latitude, double longitude, int hours) {
+        return getEntry(latitude, longitude).thenApply(entry -> {
+            Instant now = Instant.now();
+            return WeatherReport.hourly(entry != null ? entry.summary() : null, now, hours) + staleNote(entry, now);
+        });
+    }
 
-            JsonNode timeSeries = jsonNode.path("properties").path("timeseries");
+    public CompletableFuture<String> getDailyForecastAsync(double latitude, double longitude, int days) {
+        return getEntry(latitude, longitude).thenApply(entry -> {
+            Instant now = Instant.now();
+            return WeatherReport.daily(entry != null ? entry.summary() : null, now, days) + staleNote(entry, now);
+        });
+    }
 
-            if (!timeSeries.isArray() || timeSeries.isEmpty()) {
-                return "Weather data unavailable.";
-            }
+    // forecasts are fetched and cached per cell, so places in the same cell share one
+    public static GridCell cellOf(double latitude, double longitude) {
+        return GridCell.of(latitude, longitude, GRID_PRECISION);
+    }
 
-            JsonNode details = timeSeries.get(0).path("data").path("instant").path("details");
+    // keep the popular cells warm, starting from the places users have already asked about
+    public void startPrefetch(Config config) {
+        if (!config.getBoolean("prefetch.enabled", true) || prefetcher != null) {
+            return;
+        }
+        prefetcher = new PrefetchScheduler(this, config, upstream.rate(API));
+        for (BotDatabase.SavedPlace place : BotDatabase.getSavedPlaces(config.getInt("prefetch.seedLimit", 5000))) {
+            prefetcher.recordDemand(GridCell.of(place.latitude(), place.longitude(), GRID_PRECISION));
+        }
+        prefetcher.start();
+    }
 
-            double temperature = details.path("air_temperature").asDouble();
-            double windSpeed = details.path("wind_speed").asDouble();
-            double humidity = details.path("relative_humidity").asDouble();
-            double pressure = details.path("air_pressure_at_sea_level").asDouble();
-            double cloudCoverage = details.path("cloud_area_fraction").asDouble();
-            double precipitation = timeSeries.path("data").path("next_1_hours").path("details").path("precipitation_amount").asDouble();
+    // null if the cell isn't cached
+    public Instant cachedUntil(GridCell cell) {
+        ForecastCache.Entry cached = cache.get(cell);
+        return cached != null ? cached.expires() : null;
+    }
 
-            return String.format("Temperature: %.2f°C\nWind Speed: %.2f m/s\nHumidity: %.2f%%\nPressure: %.2f hPa\nCloud Coverage: %.2f%%\nPrecipitation: %.2f mm",
-                    temperature, windSpeed, humidity, pressure, cloudCoverage, precipitation);
+    public CompletableFuture<ForecastCache.Entry> refresh(GridCell cell) {
+        // joins a user's request for the cell if one is already running
+        return inFlight.submit(cell, () -> fetchForecast(cell, true, UpstreamScheduler.Priority.PREFETCH));
+    }
+
+    // completes with an out of date forecast if that's all there is, or null if there's none
+    private CompletableFuture<ForecastCache.Entry> getEntry(double latitude, double longitude) {
+        GridCell cell = GridCell.of(latitude, longitude, GRID_PRECISION);
+        if (prefetcher != null) {
+            prefetcher.recordDemand(cell);
+        }
+        ForecastCache.Entry cached = cache.get(cell);
+        Instant now = Instant.now();
+        if (cached != null && cached.isFresh(now)) {
+            logger.debug("Forecast cache hit for {}", cell);
+            return CompletableFuture.completedFuture(cached);
+        }
+        if (cached != null && cached.isFresh(now.minus(staleWhileRevalidate))) {
+            // only just expired, so answer with it and refresh it behind the user's back,
+            // queued with the prefetching so it doesn't take tokens from users waiting on a reply
+            inFlight.submit(cell, () -> fetchForecast(cell, false, UpstreamScheduler.Priority.PREFETCH));
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        // chats asking for the same cell at the same time share one request,
+        // and if that is a prefetch still in the queue, it goes ahead as the user's
+        CompletableFuture<HttpResponse<InputStream>> background = backgroundRequests.get(cell);
+        if (background != null && upstream.promote(API, background)) {
+            logger.debug("Promoted the background request for {}", cell);
+        }
+        return inFlight.submit(cell, () -> fetchForecast(cell, false, UpstreamScheduler.Priority.INTERACTIVE));
+    }
+
+    private CompletableFuture<ForecastCache.Entry> fetchForecast(GridCell cell, boolean refresh,
+                                                                 UpstreamScheduler.Priority priority) {
+        ForecastCache.Entry cached = cache.get(cell);
+        if (!refresh && cached != null && cached.isFresh(Instant.now())) {
+            // refreshed while we were waiting
+            return CompletableFuture.completedFuture(cached);
+        }
 
+        String url = String.format(Locale.ROOT, API_URL, cell.latitude(), cell.longitude());
+        HttpRequest.Builder request = upstream.request(url)
+                .header("User-Agent", USER_AGENT);
+        if (cached != null && cached.lastModified() != null) {
+            // only download the forecast again if it has changed
+            request.header("If-Modified-Since", cached.lastModified());
+        }
 
-        } catch (Exception e) {
+        CompletableFuture<HttpResponse<InputStream>> sent = upstream.submit(API, priority, request.build());
+        if (priority != UpstreamScheduler.Priority.INTERACTIVE) {
+            backgroundRequests.put(cell, sent);
+            sent.whenComplete((response, error) -> backgroundRequests.remove(cell, sent));
+        }
+        return sent
+                .thenApply(response -> handleResponse(cell, cached, response))
+                .exceptionally(e -> {
+                    logger.warn("Exception thrown while polling weather data api: {}", e.getMessage());
+                    // better an old forecast than none
+                    return cached;
+                });
+    }
+
+    private ForecastCache.Entry handleResponse(GridCell cell, ForecastCache.Entry cached,
+                                               HttpResponse<InputStream> response) {
+        if (response.statusCode() == 304 && cached != null) {
+            UpstreamClient.discard(response);
+            ForecastCache.Entry revalidated = cached.withExpires(expiresAt(response));
+            cache.put(cell, revalidated);
+            logger.debug("Forecast for {} not modified", cell);
+            return revalidated;
+        }
+
+        if (response.statusCode() != 200) {
+            logger.warn("bad response: {}", response.statusCode());
+            UpstreamClient.discard(response);
+            return cached;
+        }
+
+        try {
+            ForecastSeries forecast = parser.parse(UpstreamClient.body(response));
+            if (forecast == null) {
+                forecast = new ForecastSeries.Builder().build();
+            }
+
+            String lastModified = response.headers().firstValue("Last-Modified").orElse(null);
+            ForecastCache.Entry entry = new ForecastCache.Entry(ForecastSummary.of(forecast, cell.longitude()),
+                    expiresAt(response), lastModified);
+            if (forecast.isEmpty()) {
+                // not worth keeping, try again next time
+                logger.warn("No timeseries in forecast for {}", cell);
+                return entry;
+            }
+
+            cache.put(cell, entry);
+            logger.debug("Cached {} forecast rows for {}", forecast.size(), cell);
+            return entry;
+
+        } catch (IOException e) {
             logger.error(e.getMessage(), e);
-            return "Error.";
+            return cached;
+        }
+    }
+
+    private String staleNote(ForecastCache.Entry entry, Instant now) {
+        // only entries met.no couldn't refresh get this far out of date
+        if (entry == null || entry.isFresh(now.minus(staleWhileRevalidate))) {
+            return "";
+        }
+        long minutes = Duration.between(entry.expires(), now).toMinutes();
+        String age = minutes < 120 ? minutes + " min" : (minutes / 60) + " h";
+        return "\n(Forecast is " + age + " out of date, met.no isn't responding.)";
+    }
+
+    private Instant expiresAt(HttpResponse<?> response) {
+        return response.headers().firstValue("Expires")
+                .map(WeatherService::parseHttpDate)
+                .orElseGet(() -> Instant.now().plus(DEFAULT_TTL));
+    }
+
+    private static Instant parseHttpDate(String value) {
+        try {
+            return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+        } catch (DateTimeParseException e) {
+            return Instant.now().plus(DEFAULT_TTL);
+        }
+    }
+
+    public void close() {
+        if (prefetcher != null) {
+            prefetcher.close();
         }
     }
-}
\ No newline at end of file
+}
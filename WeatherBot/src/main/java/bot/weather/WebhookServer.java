@@ -0,0 +1,126 @@
+package bot.weather;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.longpolling.interfaces.LongPollingUpdateConsumer;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class WebhookServer implements AutoCloseable {
+
+    /*
+     Receives updates pushed by Telegram instead of polling for them.
+     Each POST is one update as JSON. It is decoded, handed to the consumer on a single thread,
+     and answered with 200 straight away.
+     Telegram posts several updates at once (up to the webhook's max_connections), so unlike
+     long polling they can reach the consumer out of update_id order.
+     The server speaks plain http and is meant to sit behind an https proxy, so it listens on
+     localhost unless told otherwise. It won't start without webhook.secret, and requests without
+     a matching X-Telegram-Bot-Api-Secret-Token header are turned away.
+     */
+
+    private static final String SECRET_HEADER = "X-Telegram-Bot-Api-Secret-Token";
+    // what telegram accepts as a secret_token
+    private static final String SECRET_PATTERN = "[A-Za-z0-9_-]{1,256}";
+
+    private final LongPollingUpdateConsumer consumer;
+    private final String secret;
+    private final ObjectMapper objectMapper;
+    private final HttpServer server;
+    private final ExecutorService handOff;
+    private final ExecutorService requests;
+    private final Logger logger;
+
+    public WebhookServer(LongPollingUpdateConsumer consumer, Config config) throws IOException {
+        this.consumer = consumer;
+        this.secret = config.getString("webhook.secret", null);
+        // without it anyone who can reach the port could post updates for any chat
+        if (secret == null || !secret.matches(SECRET_PATTERN)) {
+            throw new IllegalStateException(
+                    "webhook.secret must be set to 1-256 letters, digits, _ or - in webhook mode.");
+        }
+        // telegram adds fields now and then, which shouldn't break decoding
+        this.objectMapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        this.handOff = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "webhook-updates"));
+        this.logger = LoggerFactory.getLogger(WebhookServer.class);
+
+        String host = config.getString("webhook.host", "127.0.0.1");
+        int port = config.getInt("webhook.port", 8443);
+        String path = config.getString("webhook.path", "/telegram");
+        this.server = HttpServer.create(new InetSocketAddress(host, port), config.getInt("webhook.backlog", 64));
+        this.server.createContext(path, this::handle);
+        // the handler only decodes and queues, so requests are served on virtual threads
+        this.requests = Executors.newVirtualThreadPerTaskExecutor();
+        this.server.setExecutor(requests);
+        logger.info("Webhook listening on {}:{}{}", host, port, path);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            if (!secretMatches(exchange.getRequestHeaders().getFirst(SECRET_HEADER))) {
+                logger.warn("Webhook request from {} without the right secret token", exchange.getRemoteAddress());
+                exchange.sendResponseHeaders(401, -1);
+                return;
+            }
+
+            Update update;
+            try (InputStream body = exchange.getRequestBody()) {
+                update = objectMapper.readValue(body, Update.class);
+            } catch (IOException e) {
+                // a 4xx, as telegram would only send the same bad update again
+                logger.warn("Could not decode webhook update: {}", e.getMessage());
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+
+            // queued before answering, so telegram isn't kept waiting on the weather
+            handOff.execute(() -> {
+                try {
+                    consumer.consume(List.of(update));
+                } catch (RuntimeException e) {
+                    logger.error(e.getMessage(), e);
+                }
+            });
+            exchange.sendResponseHeaders(200, -1);
+        }
+    }
+
+    private boolean secretMatches(String given) {
+        // compared in constant time
+        return given != null && MessageDigest.isEqual(given.getBytes(StandardCharsets.UTF_8),
+                secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void close() {
+        // stop taking updates, then let the ones already queued finish
+        server.stop(1);
+        requests.shutdown();
+        handOff.shutdown();
+        try {
+            handOff.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
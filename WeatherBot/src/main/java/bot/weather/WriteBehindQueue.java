@@ -0,0 +1,192 @@
+package bot.weather;
+
+import bot.weather.ConnectionPool.PooledConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class WriteBehindQueue implements AutoCloseable {
+
+    /*
+     Queues writes that nobody waits on (the users and user_messages logging) and
+     commits them from one background thread, many at a time in a single transaction.
+     A batch is committed once it holds batchSize writes or maxDelayMs has passed
+     since its first write. When the queue is full, submit() blocks until there is room.
+     */
+
+    public interface Write {
+        void apply(PooledConnection connection) throws SQLException;
+    }
+
+    private static final long FLUSH_TIMEOUT_MS = 10_000;
+
+    // queued after the writes it waits for, and released once they are committed
+    private record Barrier(CountDownLatch latch) implements Write {
+        @Override
+        public void apply(PooledConnection connection) {
+        }
+    }
+
+    private static final Write STOP = connection -> {};
+
+    private final ConnectionPool pool;
+    private final BlockingQueue<Write> queue;
+    private final int batchSize;
+    private final long maxDelayNanos;
+    private final Thread writer;
+    private final Logger logger;
+    private volatile boolean closed;
+
+    public WriteBehindQueue(ConnectionPool pool, int capacity, int batchSize, long maxDelayMs) {
+        this.pool = pool;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+        this.logger = LoggerFactory.getLogger(WriteBehindQueue.class);
+        this.writer = new Thread(this::run, "db-write-behind");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public void submit(Write write) {
+        if (closed) {
+            // too late to queue, so write it straight away
+            commit(List.of(write));
+            return;
+        }
+        try {
+            if (!queue.offer(write)) {
+                logger.warn("Write queue full, waiting for the writer to catch up.");
+                queue.put(write);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            commit(List.of(write));
+        }
+    }
+
+    public void flush() {
+        // wait until everything queued so far has been committed
+        if (closed || Thread.currentThread() == writer) {
+            return;
+        }
+        Barrier barrier = new Barrier(new CountDownLatch(1));
+        try {
+            queue.put(barrier);
+            if (!barrier.latch().await(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                logger.warn("Timed out waiting for queued writes to be committed.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int pending() {
+        return queue.size();
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(STOP);
+            writer.join(FLUSH_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // anything that slipped in behind the stop marker
+        List<Write> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        commit(remaining);
+    }
+
+    private void run() {
+        List<Write> batch = new ArrayList<>(batchSize);
+        boolean stopping = false;
+
+        while (!stopping) {
+            Barrier barrier = null;
+            try {
+                Write next = queue.take();
+                long deadline = System.nanoTime() + maxDelayNanos;
+
+                while (next != null) {
+                    if (next == STOP) {
+                        stopping = true;
+                        break;
+                    }
+                    if (next instanceof Barrier b) {
+                        barrier = b;
+                        break;
+                    }
+                    batch.add(next);
+                    if (batch.size() >= batchSize) {
+                        break;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                }
+            } catch (InterruptedException e) {
+                // only close() stops the writer, so commit what there is and carry on
+                logger.warn("Write-behind thread interrupted, carrying on until closed.");
+            }
+
+            // commit() catches everything itself, but the writer must never die while others wait on it
+            try {
+                commit(batch);
+            } catch (RuntimeException e) {
+                logger.error(e.getMessage(), e);
+            }
+            batch.clear();
+            if (barrier != null) {
+                barrier.latch().countDown();
+            }
+        }
+
+        // drain whatever is left before going away
+        List<Write> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        commit(remaining);
+    }
+
+    private void commit(List<Write> writes) {
+        List<Write> batch = writes.stream().filter(write -> write != STOP).toList();
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        try (PooledConnection connection = pool.acquire()) {
+            Connection jdbc = connection.connection();
+            jdbc.setAutoCommit(false);
+            for (Write write : batch) {
+                try {
+                    write.apply(connection);
+                } catch (SQLException | RuntimeException e) {
+                    // one bad row shouldn't lose the rest of the batch
+                    logger.error(e.getMessage(), e);
+                }
+            }
+            jdbc.commit();
+            jdbc.setAutoCommit(true);
+            logger.debug("Committed {} queued writes.", batch.size());
+        } catch (SQLException | RuntimeException e) {
+            logger.error("Failed to commit {} queued writes: {}", batch.size(), e.getMessage(), e);
+        } finally {
+            for (Write write : batch) {
+                if (write instanceof Barrier b) {
+                    b.latch().countDown();
+                }
+            }
+        }
+    }
+}